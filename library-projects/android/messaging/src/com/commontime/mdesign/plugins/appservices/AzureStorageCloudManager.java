@@ -24,9 +24,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class AzureStorageCloudManager {
 	private static final String GET_SAS_TOKEN = "getsastoken";
@@ -121,9 +123,35 @@ public class AzureStorageCloudManager {
 		
 		final AzureStorageException exception = new AzureStorageException();		
 		
-		ExecutorService es = Executors.newSingleThreadExecutor();
+		Future<?> upload;
+		try {
+			upload = submitUpload(msg, path, exception);
+		} catch (RejectedExecutionException e) {
+			// Never run on this thread, it would escape the timeout below; the send is retried later
+			exception.initCause(new IOException("Transport busy, upload of " + path + " not started"));
+			throw exception;
+		}
 		
-		es.execute( new Runnable() {
+		try {
+			upload.get(5, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			exception.initCause(e);
+		} catch (ExecutionException e) {
+			exception.initCause(e.getCause());
+		} catch (TimeoutException e) {
+			upload.cancel(true);
+			exception.initCause(new IOException("Azure cloud timed out uploading blob"));
+		}
+		
+		if( exception.getCause() != null ) {
+			throw exception;
+		}
+		
+		return uploadFileId;
+	}
+
+	private Future<?> submitUpload(final PushMessage msg, final String path, final AzureStorageException exception) {
+		return system.getTransportExecutor().submit( new Runnable() {
 			private boolean uploadingBlob;
 			private int blobUploadPercentage;
 
@@ -219,27 +247,12 @@ public class AzureStorageCloudManager {
 					e.printStackTrace();
 					if( exception.getCause() == null )
 						exception.initCause(e);
+				} finally {
+					// Stops the progress thread if the upload failed
+					uploadingBlob = false;
 				}
 			}			
 		});
-		
-		boolean success = false;
-		try {
-			es.shutdown();
-			success = es.awaitTermination(5, TimeUnit.MINUTES);
-		} catch (InterruptedException e) {
-			exception.initCause(e);
-		}
-				
-		if( !success ) {
-			exception.initCause(new IOException("Azure cloud timed out uploading blob"));
-		}
-		
-		if( exception.getCause() != null ) {
-			throw exception;
-		}
-		
-		return uploadFileId;
 	}
 
 	public void deleteLocalFile(String path) {
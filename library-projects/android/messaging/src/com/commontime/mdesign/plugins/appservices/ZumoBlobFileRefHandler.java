@@ -34,6 +34,9 @@ public class ZumoBlobFileRefHandler implements FileRefHandlerInterface {
 
 	@Override
 	public String resolveFileRefs(final PushMessage msg) throws JSONException, IOException {
+		if (!mayContain(msg.getContent(), PREFIX_FILE_REF)) {
+			return msg.getContent();
+		}
 		JSONObject jsonObject = new JSONObject(msg.getContent());
 
 		try {
@@ -69,6 +72,9 @@ public class ZumoBlobFileRefHandler implements FileRefHandlerInterface {
 	
 	@Override
 	public String createFileRefs(String content) throws JSONException, IOException {
+		if (!mayContain(content, PREFIX_FILE_DATA)) {
+			return content;
+		}
 		JSONObject jsonObject = new JSONObject(content);
 
 		try {
@@ -96,6 +102,9 @@ public class ZumoBlobFileRefHandler implements FileRefHandlerInterface {
 	}
 
 	public void deleteFiles(String content) {
+		if (!mayContain(content, PREFIX_FILE_REF)) {
+			return;
+		}
 		try {
 			JSONObject jsonObject = new JSONObject(content);
 			ConvertJSONObject(jsonObject, new Converter() {
@@ -117,6 +126,11 @@ public class ZumoBlobFileRefHandler implements FileRefHandlerInterface {
 		}
 	}
 	
+	// Content without the prefix in it has nothing to convert, so skip parsing it
+	private static boolean mayContain(String content, String prefix) {
+		return content != null && content.indexOf("\"" + prefix) >= 0;
+	}
+
 	private void ConvertJSONObject(JSONObject jsonObject, Converter converter) throws JSONException, IOException, AzureStorageException {
 		Iterator<?> iter = jsonObject.keys();
 		while (iter.hasNext()) {
@@ -77,6 +77,7 @@ public class ZumoPushSystem extends PushSystem implements MessageReceiveObserver
 	protected boolean sendSuccess;
 	protected int zumoResponseCode;
 	private boolean activityRunning;
+	// Sends share state in the fields above, so they run one at a time here
 	final ExecutorService service = Executors.newSingleThreadScheduledExecutor();
 	private JSONObject syncSendResult;
 	
@@ -346,7 +347,15 @@ public class ZumoPushSystem extends PushSystem implements MessageReceiveObserver
 		String httpMethod = "GET";
 		String zumoApi = "";
 
-		JSONObject jsonContent = msg.getJSONContent();
+		// A copy, as the context added below mustn't end up in the config sent back in the response
+		JSONObject jsonContent;
+		try {
+			jsonContent = msg.copyJSONContent();
+		} catch (JSONException e) {
+			CTLog.getInstance().log("shell", Priority.ERROR_INT, "[zumo] Unable to parse message content: " + e.getMessage());
+			setState(State.idle);
+			return Result.fail;
+		}
 		try {
 			if(jsonContent.has("transport")) {
                 JSONObject transport = jsonContent.getJSONObject("transport");
@@ -782,6 +791,10 @@ public class ZumoPushSystem extends PushSystem implements MessageReceiveObserver
 		return history;
 	}
 
+	ExecutorService getTransportExecutor() {
+		return pushEngine.getTransportExecutor();
+	}
+
 	@Override
 	public String getName() {
 		return AZURE_APP_SERVICES;
@@ -12,5 +12,6 @@ interface AzureMessageBroker {
 	HttpURLConnection[] getCreateOutRequest(String outChannel);
 
 	HttpURLConnection getReceiveConnection(String channel);
+	HttpURLConnection getReceiveConnection(String channel, boolean wait);
 	HttpURLConnection getDeleteConnection(String channel, String messageId, String lockToken);
 }
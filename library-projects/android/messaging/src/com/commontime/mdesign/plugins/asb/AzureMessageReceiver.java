@@ -1,7 +1,6 @@
 package com.commontime.mdesign.plugins.asb;
 
 import com.commontime.mdesign.plugins.base.CTLog;
-import com.commontime.mdesign.plugins.notificationsbase.MessageReceiveObserver;
 import com.commontime.mdesign.plugins.notificationsbase.db.PushMessage;
 
 import org.apache.commons.io.IOUtils;
@@ -13,24 +12,28 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 
 public class AzureMessageReceiver implements Runnable {
 
+	// Backlogged messages are drained without waiting and handed over in batches of up to this size
+	private static final int MAX_BATCH_SIZE = 50;
+
 	private final boolean singleCheck;
 	private boolean cancelled = false;
 
 	private AzurePushSystem system;
 	private String channel;
-	private MessageReceiveObserver messageReceiver;
+	private List<PushMessage> batch = new ArrayList<PushMessage>();
 
 	private HttpURLConnection receiveConnection;
 	private HttpURLConnection deleteConnection;
 
-	public AzureMessageReceiver(AzurePushSystem system, String channel, MessageReceiveObserver messageReceiver, boolean singleCheck) {
+	public AzureMessageReceiver(AzurePushSystem system, String channel, boolean singleCheck) {
 		this.system = system;
 		this.channel = channel;
-		this.messageReceiver = messageReceiver;
 		this.singleCheck = singleCheck;
 	}
 
@@ -84,7 +87,8 @@ public class AzureMessageReceiver implements Runnable {
 			
 			while (!cancelled) {
 
-				String responseString = receiveAndDeleteMessage();
+				// Only wait for a message when there is nothing already queued up to deliver
+				String responseString = receiveAndDeleteMessage(batch.isEmpty() && !singleCheck);
 				system.resetBackOff();
 
 				if (responseString != null ) {
@@ -99,17 +103,22 @@ public class AzureMessageReceiver implements Runnable {
 
 						message.setProvider(AzurePushSystem.AZURE_SERVICEBUS);
 
-						// Send the message to the receiver
-						messageReceiver.messageReceived(message);
+						batch.add(message);
 
 					} catch (JSONException e) {
 						// e.printStackTrace();
 						CTLog.getInstance().log("shell", Priority.ERROR_INT, "Invalid message received: " + e.getMessage());
 					}
-				} else {
-					if (singleCheck)
-						break;
+
+					if (batch.size() < MAX_BATCH_SIZE) {
+						continue;
+					}
 				}
+
+				deliverBatch();
+
+				if (responseString == null && singleCheck)
+					break;
 			}
 		} catch (IOException e) {
 			// e.printStackTrace();
@@ -117,16 +126,30 @@ public class AzureMessageReceiver implements Runnable {
 			// TODO: Fix
 			// if (!cancelled && !singleCheck)
 				// system.reconnect();
+		} finally {
+			// These have already been deleted from the broker, so must not be dropped
+			deliverBatch();
 		}
 
 		CTLog.getInstance().log("shell", Priority.INFO_INT, "Exiting ASB Receiver thread" );
 	}
 
-	private String receiveAndDeleteMessage() throws IOException {
+	private void deliverBatch() {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		// Send the messages to the receiver
+		List<PushMessage> messages = batch;
+		batch = new ArrayList<PushMessage>();
+		system.messagesReceived(messages);
+	}
+
+	private String receiveAndDeleteMessage(boolean wait) throws IOException {
 		
 		CTLog.getInstance().log("shell", Priority.INFO_INT, "Waiting to receive message on channel: " + channel);
 
-		receiveConnection = system.getBroker().getReceiveConnection(channel);
+		receiveConnection = system.getBroker().getReceiveConnection(channel, wait);
 		
 		CTLog.getInstance().log("shell", Priority.WARN_INT, "Executing HTTP POST for new message");
 		CTLog.getInstance().log("shell", Priority.INFO_INT, receiveConnection.getURL().toString());
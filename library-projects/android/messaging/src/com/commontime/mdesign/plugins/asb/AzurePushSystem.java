@@ -216,7 +216,7 @@ public class AzurePushSystem extends PushSystem implements MessageReceiveObserve
 		if (state == State.connected) {
 			synchronized (channelReceiverMap) {
 				if (!channelReceiverMap.containsKey(channel)) {
-					AzureMessageReceiver receiver = new AzureMessageReceiver(this, channel, this, singleCheck);
+					AzureMessageReceiver receiver = new AzureMessageReceiver(this, channel, singleCheck);
 					executor.execute(receiver);
 					channelReceiverMap.put(channel, receiver);
 				}
@@ -240,12 +240,15 @@ public class AzurePushSystem extends PushSystem implements MessageReceiveObserve
 		observer.messageReceived(message);
 	}
 
+	public void messagesReceived(List<PushMessage> messages) {
+		// Notify the engine
+		observer.messagesReceived(messages);
+	}
+
 	@Override
 	public synchronized Future<SendResult> sendMessage(final PushMessage msg) {
 
-		final ExecutorService service = Executors.newSingleThreadScheduledExecutor();
-
-		return service.submit(new Callable<SendResult>() {
+		return pushEngine.getTransportExecutor().submit(new Callable<SendResult>() {
 
 			@Override
 			public SendResult call() throws Exception {
@@ -71,8 +71,13 @@ public class AzureQueueBroker implements AzureMessageBroker {
 
 	@Override
 	public HttpURLConnection getReceiveConnection(String channel) {
+		return getReceiveConnection(channel, !system.getIsSingleCheck());
+	}
+
+	@Override
+	public HttpURLConnection getReceiveConnection(String channel, boolean wait) {
 		String fullAddress = system.getBaseAddress() + channel + "/messages/head" + "?timeout=";
-		if( system.getIsSingleCheck() ) {
+		if( !wait ) {
 			fullAddress+="0";
 		} else {
 			fullAddress+="55";
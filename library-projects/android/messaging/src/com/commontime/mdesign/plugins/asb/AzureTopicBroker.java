@@ -115,9 +115,14 @@ public class AzureTopicBroker implements AzureMessageBroker {
 
 	@Override
 	public HttpURLConnection getReceiveConnection(String channel) {
+		return getReceiveConnection(channel, !system.getIsSingleCheck());
+	}
+
+	@Override
+	public HttpURLConnection getReceiveConnection(String channel, boolean wait) {
 		String subscriptionPath = getSubscriptionPath(channel);
 		String fullAddress = system.getBaseAddress() + subscriptionPath + "/messages/head" + "?timeout=";
-		if( system.getIsSingleCheck() ) {
+		if( !wait ) {
 			fullAddress+="0";
 		} else {
 			fullAddress+="120";
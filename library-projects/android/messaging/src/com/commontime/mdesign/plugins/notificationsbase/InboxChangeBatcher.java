@@ -0,0 +1,122 @@
+package com.commontime.mdesign.plugins.notificationsbase;
+
+import com.commontime.mdesign.plugins.base.CTLog;
+import com.commontime.mdesign.plugins.notificationsbase.db.PushMessage;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.apache.cordova.PluginResult.Status;
+import org.apache.log4j.Priority;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects inbox changes as {action, id} deltas and sends them to JavaScript
+ * as one array, either when maxEvents have built up or flushInterval ms after
+ * the first pending change. Several changes to the same message within a
+ * batch are merged into one delta. Message bodies are not sent; the page
+ * fetches the ones it needs.
+ */
+class InboxChangeBatcher implements MessageReceiver {
+
+	private static final ScheduledExecutorService flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "InboxChangeBatcher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final CallbackContext mCallbackContext;
+	private final long mFlushInterval;
+	private final int mMaxEvents;
+
+	// Message id -> action, in the order the messages first changed
+	private final Map<String, String> mPending = new LinkedHashMap<String, String>();
+	private ScheduledFuture<?> mFlushHandle;
+	private boolean mClosed;
+
+	InboxChangeBatcher(CallbackContext callbackContext, long flushInterval, int maxEvents) {
+		mCallbackContext = callbackContext;
+		mFlushInterval = flushInterval;
+		mMaxEvents = maxEvents;
+	}
+
+	@Override
+	public void messageReceived(PushMessage pm, String type) {
+		add(pm.getId(), type);
+	}
+
+	synchronized void add(String id, String action) {
+		if (mClosed) {
+			return;
+		}
+		String pending = mPending.get(id);
+		if (pending == null || MessageChangeObserver.DELETE_TYPE.equals(action)) {
+			mPending.put(id, action);
+		} else if (!MessageChangeObserver.CREATE_TYPE.equals(pending)) {
+			// A create stays a create however often it is updated
+			mPending.put(id, action);
+		}
+
+		if (mPending.size() >= mMaxEvents) {
+			flush();
+		} else if (mFlushHandle == null) {
+			mFlushHandle = flushTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, mFlushInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	synchronized void flush() {
+		if (mFlushHandle != null) {
+			mFlushHandle.cancel(false);
+			mFlushHandle = null;
+		}
+		if (mClosed || mPending.isEmpty()) {
+			return;
+		}
+		JSONArray deltas = new JSONArray();
+		try {
+			for (Map.Entry<String, String> change : mPending.entrySet()) {
+				JSONObject delta = new JSONObject();
+				delta.put("action", change.getValue());
+				delta.put("id", change.getKey());
+				deltas.put(delta);
+			}
+		} catch (JSONException e) {
+			CTLog.getInstance().log("shell", Priority.ERROR_INT, "Failed building inbox change batch: " + e.getMessage());
+			return;
+		}
+		mPending.clear();
+
+		PluginResult result = new PluginResult(Status.OK, deltas);
+		result.setKeepCallback(true);
+		mCallbackContext.sendPluginResult(result);
+	}
+
+	/**
+	 * Stop sending, dropping anything still pending
+	 */
+	synchronized void close() {
+		mClosed = true;
+		mPending.clear();
+		if (mFlushHandle != null) {
+			mFlushHandle.cancel(false);
+			mFlushHandle = null;
+		}
+	}
+}
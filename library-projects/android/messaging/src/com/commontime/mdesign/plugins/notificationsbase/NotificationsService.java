@@ -74,7 +74,7 @@ public class NotificationsService extends Service {
 		Log.d("shell", Prefs.get().getString("sbHostName", "") );
 		getPushEngine().setNetworkConnected(intent.getAction().equals("connected"));
 		if( intent.getAction().equals("connected") ) {
-			getPushEngine().startLimitedSendSchedule(5);
+			getPushEngine().startLimitedSendSchedule();
 		} else {
 			getPushEngine().stopLimitedSendSchedule();
 			getPushEngine().stopSendSchedule();
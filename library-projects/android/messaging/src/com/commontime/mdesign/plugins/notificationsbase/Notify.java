@@ -21,16 +21,24 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Notify extends CordovaPlugin {
 
 	public static final String NOTIFICATION_PLUGINS = "notificationPlugins";
 	public static final String DEFAULT_PUSH_SYSTEM = "defaultPushSystem";
 
+	private static final int DEFAULT_PAGE_SIZE = 50;
+	private static final long DEFAULT_CHANGE_FLUSH_INTERVAL = 250;
+	private static final int DEFAULT_CHANGE_BATCH_SIZE = 100;
+
 	private boolean mIsBound;
 	private NotificationsService mBoundService;
 
+	private final Map<String, InboxChangeBatcher> mInboxChangeBatchers = new HashMap<String, InboxChangeBatcher>();
+
 	private ServiceConnection mConnection = new ServiceConnection() {
 		public void onServiceConnected(ComponentName className, IBinder service) {
 			mBoundService = ((NotificationsService.LocalBinder)service).getService();
@@ -107,12 +115,26 @@ public class Notify extends CordovaPlugin {
 			getMessages(callbackContext, args.optString(0), args.optString(1));
 		} else if (action.equals("getUnreadMessages")) {
 			getUnreadMessages(callbackContext, args.optString(0), args.optString(1), args.optString(2));
+		} else if (action.equals("getMessagesPage")) {
+			getMessagesPage(callbackContext, args.optString(0), args.optString(1), args.optLong(2), pageAfterId(args, 3), pageLimit(args, 4));
+		} else if (action.equals("getUnreadMessagesPage")) {
+			getUnreadMessagesPage(callbackContext, args.optString(0), args.optString(1), args.optString(2), args.optLong(3), pageAfterId(args, 4), pageLimit(args, 5));
+		} else if (action.equals("streamMessages")) {
+			streamMessages(callbackContext, args.optString(0), args.optString(1), args.optInt(2, DEFAULT_PAGE_SIZE));
+		} else if (action.equals("getMessageHeaders")) {
+			getMessageHeaders(callbackContext, args.optString(0), args.optString(1));
+		} else if (action.equals("getUnreadMessageHeaders")) {
+			getUnreadMessageHeaders(callbackContext, args.optString(0), args.optString(1), args.optString(2));
+		} else if (action.equals("getMessage")) {
+			getMessage(callbackContext, args.optString(0));
 		} else if (action.equals("deleteMessage")) {
 			deleteMessage(callbackContext, args.optString(0));
 		} else if (action.equals("receiveMessageNotification")) {
 			receiveMessageNotification(callbackContext, args.optString(0), args.optString(1), args.optString(2));
 		} else if (action.equals("receiveInboxChanges")) {
 			receiveInboxChanges(callbackContext, args.optString(0));
+		} else if (action.equals("receiveInboxChangeBatches")) {
+			receiveInboxChangeBatches(callbackContext, args.optString(0), args.optLong(1, DEFAULT_CHANGE_FLUSH_INTERVAL), args.optInt(2, DEFAULT_CHANGE_BATCH_SIZE));
 		} else if (action.equals("messageReceivedAck")) {
 			messageReceivedAck(callbackContext, args.optString(0), args.optString(1));
 		} else if (action.equals("cancelMessageNotification")) {
@@ -274,6 +296,199 @@ public class Notify extends CordovaPlugin {
 		}
 	}
 
+	/**
+	 * The page cursor id is optional; missing, null or empty means start from the beginning
+	 */
+	private static String pageAfterId(JSONArray args, int index) {
+		String afterId = args.isNull(index) ? "" : args.optString(index);
+		return afterId.length() == 0 ? null : afterId;
+	}
+
+	/**
+	 * A missing, zero or negative limit means the default page size, not the
+	 * whole inbox
+	 */
+	private static int pageLimit(JSONArray args, int index) {
+		int limit = args.optInt(index, DEFAULT_PAGE_SIZE);
+		return limit > 0 ? limit : DEFAULT_PAGE_SIZE;
+	}
+
+	private static JSONArray toJSONArray(List<PushMessage> messages) throws JSONException {
+		JSONArray jsonMessages = new JSONArray();
+		for (PushMessage m : messages) {
+			jsonMessages.put(m.getJSONObject());
+		}
+		return jsonMessages;
+	}
+
+	/**
+	 * Retrieve one page of messages for the supplied channel/subchannel pair,
+	 * ordered by date then id. To get the next page pass the date and id of
+	 * the last message returned.
+	 * 
+	 * @param callbackContext
+	 *            id to use when calling back to JavaScript
+	 * @param channel
+	 *            name of channel to get messages for
+	 * @param subchannel
+	 *            name of subchannel to get messages for
+	 * @param afterDate
+	 *            date of the last message of the previous page
+	 * @param afterId
+	 *            id of the last message of the previous page, or null for the first page
+	 * @param limit
+	 *            maximum number of messages to return
+	 */
+	private void getMessagesPage(CallbackContext callbackContext, String channel, String subchannel, long afterDate, String afterId, int limit) {
+		try {
+			List<PushMessage> messages = mBoundService.getPushEngine().getMessages(channel, subchannel, afterDate, afterId, limit);
+			callbackContext.success(toJSONArray(messages));
+		} catch (Exception e) {
+			callbackContext.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Retrieve one page of unread messages matching the optional supplied
+	 * receiver, channel & subchannel, ordered by date then id.
+	 * 
+	 * @param callbackContext
+	 *            id to use when calling back to JavaScript
+	 * @param receiver
+	 *            name of receiver to get messages for
+	 * @param channel
+	 *            name of channel to get messages for
+	 * @param subchannel
+	 *            name of subchannel to get messages for
+	 * @param afterDate
+	 *            date of the last message of the previous page
+	 * @param afterId
+	 *            id of the last message of the previous page, or null for the first page
+	 * @param limit
+	 *            maximum number of messages to return
+	 */
+	private void getUnreadMessagesPage(CallbackContext callbackContext, String receiver, String channel, String subchannel, long afterDate, String afterId, int limit) {
+		try {
+			List<PushMessage> messages = mBoundService.getPushEngine().getUnreadMessages(channel, subchannel, receiver, afterDate, afterId, limit);
+			callbackContext.success(toJSONArray(messages));
+		} catch (Exception e) {
+			callbackContext.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Stream all messages for the supplied channel/subchannel pair back to
+	 * JavaScript a page at a time. Every page but the last keeps the callback
+	 * alive; the last page may be empty.
+	 * 
+	 * @param callbackContext
+	 *            id to use when calling back to JavaScript
+	 * @param channel
+	 *            name of channel to get messages for
+	 * @param subchannel
+	 *            name of subchannel to get messages for
+	 * @param pageSize
+	 *            number of messages per page
+	 */
+	private void streamMessages(final CallbackContext callbackContext, final String channel, final String subchannel, int size) {
+		final int pageSize = size > 0 ? size : DEFAULT_PAGE_SIZE;
+		final PushEngine engine = mBoundService.getPushEngine();
+		cordova.getThreadPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long afterDate = 0;
+					String afterId = null;
+					List<PushMessage> page;
+					do {
+						page = engine.getMessages(channel, subchannel, afterDate, afterId, pageSize);
+						if (!page.isEmpty()) {
+							PushMessage last = page.get(page.size() - 1);
+							afterDate = last.getDate();
+							afterId = last.getId();
+						}
+						PluginResult result = new PluginResult(Status.OK, toJSONArray(page));
+						result.setKeepCallback(page.size() == pageSize);
+						callbackContext.sendPluginResult(result);
+					} while (page.size() == pageSize);
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Retrieve all messages for the supplied channel/subchannel pair without
+	 * their content. Use getMessage to fetch the content of a single message.
+	 * 
+	 * @param callbackContext
+	 *            id to use when calling back to JavaScript
+	 * @param channel
+	 *            name of channel to get messages for
+	 * @param subchannel
+	 *            name of subchannel to get messages for
+	 */
+	private void getMessageHeaders(CallbackContext callbackContext, String channel, String subchannel) {
+		try {
+			List<PushMessage> messages = mBoundService.getPushEngine().getMessageHeaders(channel, subchannel);
+			List<JSONObject> jsonMessages = new ArrayList<JSONObject>();
+			for (PushMessage m : messages) {
+				jsonMessages.add(m.getHeaderJSONObject());
+			}
+			callbackContext.success(new JSONArray(jsonMessages));
+		} catch (Exception e) {
+			callbackContext.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Retrieve all unread messages matching the optional supplied receiver,
+	 * channel & subchannel without their content.
+	 * 
+	 * @param callbackContext
+	 *            id to use when calling back to JavaScript
+	 * @param receiver
+	 *            name of receiver to get messages for
+	 * @param channel
+	 *            name of channel to get messages for
+	 * @param subchannel
+	 *            name of subchannel to get messages for
+	 */
+	private void getUnreadMessageHeaders(CallbackContext callbackContext, String receiver, String channel, String subchannel) {
+		try {
+			List<PushMessage> messages = mBoundService.getPushEngine().getUnreadMessageHeaders(channel, subchannel, receiver);
+			List<JSONObject> jsonMessages = new ArrayList<JSONObject>();
+			for (PushMessage m : messages) {
+				jsonMessages.add(m.getHeaderJSONObject());
+			}
+			callbackContext.success(new JSONArray(jsonMessages));
+		} catch (Exception e) {
+			callbackContext.error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Retrieve a single inbox message, including its content
+	 * 
+	 * @param callbackContext
+	 *            id to use when calling back to JavaScript
+	 * @param id
+	 *            id of the message to get
+	 */
+	private void getMessage(CallbackContext callbackContext, String id) {
+		try {
+			PushMessage m = mBoundService.getPushEngine().getMessage(id);
+			if (m == null) {
+				callbackContext.error("Message not found: " + id);
+				return;
+			}
+			callbackContext.success(m.getJSONObject());
+		} catch (Exception e) {
+			callbackContext.error(e.getMessage());
+		}
+	}
+
 	/**
 	 * Delete the message with the supplied id
 	 * 
@@ -361,6 +576,40 @@ public class Notify extends CordovaPlugin {
 		}
 	}
 
+	/**
+	 * Register to receive message store changes in batches. Each callback is
+	 * an array of {action, id} deltas, starting with the receiver's unread
+	 * messages as creates. Bodies are fetched with getMessage as needed.
+	 * 
+	 * @param callbackContext
+	 *            id to use when calling back to JavaScript
+	 * @param flushInterval
+	 *            longest time in ms a change waits to be sent
+	 * @param maxEvents
+	 *            number of pending changes that triggers an immediate send
+	 */
+	private void receiveInboxChangeBatches(CallbackContext callbackContext, String receiver, long flushInterval, int maxEvents) {
+		InboxChangeBatcher batcher = new InboxChangeBatcher(callbackContext, flushInterval > 0 ? flushInterval : DEFAULT_CHANGE_FLUSH_INTERVAL,
+				maxEvents > 0 ? maxEvents : DEFAULT_CHANGE_BATCH_SIZE);
+		synchronized (mInboxChangeBatchers) {
+			InboxChangeBatcher previous = mInboxChangeBatchers.put(receiver, batcher);
+			if (previous != null) {
+				previous.close();
+			}
+		}
+
+		PluginResult result = new PluginResult(Status.NO_RESULT);
+		result.setKeepCallback(true);
+		callbackContext.sendPluginResult(result);
+
+		// Register before reading the backlog so nothing is missed, repeats merge in the batch
+		PushEngine pushEngine = mBoundService.getPushEngine();
+		pushEngine.registerStoreChangeReceiver(receiver, batcher);
+		for (String id : pushEngine.getUnreadMessageIds(receiver)) {
+			batcher.add(id, MessageChangeObserver.CREATE_TYPE);
+		}
+	}
+
 	private void receiveOutboxChanges(final CallbackContext callbackContext, String receiver) {
 
 		mBoundService.getPushEngine().receiveOutboxNotification(receiver, new MessageReceiver() {
@@ -453,6 +702,12 @@ public class Notify extends CordovaPlugin {
 	 */
 	private void cancelInboxChanges(CallbackContext callbackContext, String receiver) {
 		mBoundService.getPushEngine().cancelMessageStoreNotification(receiver);
+		synchronized (mInboxChangeBatchers) {
+			InboxChangeBatcher batcher = mInboxChangeBatchers.remove(receiver);
+			if (batcher != null) {
+				batcher.close();
+			}
+		}
 		callbackContext.success();
 	}
 }
@@ -7,8 +7,6 @@ import org.apache.cordova.CordovaResourceApi;
 import org.json.JSONException;
 
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 @PushSystemInterface.PushSystemName("null")
@@ -32,8 +30,7 @@ public class NullPushSystem extends PushSystem {
 
 	@Override
 	public Future<SendResult> sendMessage(PushMessage msg) {
-		final ExecutorService service = Executors.newSingleThreadScheduledExecutor();
-		return service.submit(new Callable<SendResult>() {
+		return pushEngine.getTransportExecutor().submit(new Callable<SendResult>() {
 			@Override
 			public SendResult call() throws Exception {
 				return SendResult.FailedDoNotRetry;
@@ -0,0 +1,287 @@
+package com.commontime.mdesign.plugins.notificationsbase;
+
+import android.os.SystemClock;
+
+import com.commontime.mdesign.plugins.base.CTLog;
+
+import org.apache.log4j.Priority;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers observer notifications off the thread that produced them. Each
+ * subscriber has its own bounded queue, drained in order on the executor, so
+ * a slow subscriber only holds up itself. What happens when a queue is full
+ * is set by the {@link OverflowPolicy}, which can differ by subscriber name
+ * prefix; BLOCK is only safe for subscribers whose producers don't hold a
+ * lock that observers might need, and UNBOUNDED is for subscribers that
+ * can't lose events but whose producers can't wait either.
+ */
+class ObserverDispatcher {
+
+	enum OverflowPolicy {
+		/** Discard the oldest queued event to make room */
+		DROP_OLDEST,
+		/** Wait for room, up to a limit, then fall back to DROP_OLDEST */
+		BLOCK,
+		/** Replace a queued event with the same key, otherwise DROP_OLDEST */
+		COALESCE,
+		/** Never drop; let the queue grow past its capacity */
+		UNBOUNDED
+	}
+
+	/**
+	 * A snapshot of one subscriber's queue
+	 */
+	static class SubscriberStats {
+		final String name;
+		final int pending;
+		final long delivered;
+		final long dropped;
+		final long coalesced;
+		final long lastLagMs;
+		final long maxLagMs;
+
+		SubscriberStats(String name, int pending, long delivered, long dropped, long coalesced, long lastLagMs, long maxLagMs) {
+			this.name = name;
+			this.pending = pending;
+			this.delivered = delivered;
+			this.dropped = dropped;
+			this.coalesced = coalesced;
+			this.lastLagMs = lastLagMs;
+			this.maxLagMs = maxLagMs;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": pending " + pending + ", delivered " + delivered + ", dropped " + dropped + ", coalesced " + coalesced
+					+ ", lag " + lastLagMs + "ms (max " + maxLagMs + "ms)";
+		}
+	}
+
+	private static class Event {
+		final String key;
+		final long queuedAt;
+		Runnable task;
+
+		Event(String key, Runnable task, long queuedAt) {
+			this.key = key;
+			this.task = task;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	// Events a subscriber runs before giving its executor thread to others
+	private static final int MAX_EVENTS_PER_RUN = 32;
+	// A producer blocked longer than this may be holding a lock the subscriber needs
+	private static final long BLOCK_TIMEOUT_MS = 5000;
+	private static final long LAG_WARN_MS = 5000;
+
+	private final Executor mExecutor;
+	private final int mCapacity;
+	private final OverflowPolicy mDefaultPolicy;
+	private final ConcurrentMap<String, OverflowPolicy> mPolicies = new ConcurrentHashMap<String, OverflowPolicy>();
+	private final ConcurrentMap<String, Subscriber> mSubscribers = new ConcurrentHashMap<String, Subscriber>();
+
+	ObserverDispatcher(Executor executor, int capacity, OverflowPolicy defaultPolicy) {
+		mExecutor = executor;
+		mCapacity = capacity;
+		mDefaultPolicy = defaultPolicy;
+	}
+
+	/**
+	 * Use this policy for subscribers whose names start with the prefix.
+	 * Applies to subscribers created after the call.
+	 */
+	void setPolicy(String prefix, OverflowPolicy policy) {
+		mPolicies.put(prefix, policy);
+	}
+
+	private OverflowPolicy getPolicy(String subscriber) {
+		for (Map.Entry<String, OverflowPolicy> entry : mPolicies.entrySet()) {
+			if (subscriber.startsWith(entry.getKey())) {
+				return entry.getValue();
+			}
+		}
+		return mDefaultPolicy;
+	}
+
+	/**
+	 * Queue a notification for the subscriber. Events for one subscriber run
+	 * in the order they are dispatched. The key identifies events that may
+	 * be coalesced, and can be null.
+	 */
+	void dispatch(String subscriber, String key, Runnable task) {
+		Subscriber s = mSubscribers.get(subscriber);
+		if (s == null) {
+			Subscriber created = new Subscriber(subscriber, getPolicy(subscriber));
+			s = mSubscribers.putIfAbsent(subscriber, created);
+			if (s == null) {
+				s = created;
+			}
+		}
+		if (s.offer(key, task)) {
+			mExecutor.execute(s);
+		}
+	}
+
+	/**
+	 * Forget the subscriber, discarding anything still queued for it
+	 */
+	void remove(String subscriber) {
+		Subscriber s = mSubscribers.remove(subscriber);
+		if (s != null) {
+			s.close();
+		}
+	}
+
+	List<SubscriberStats> getStats() {
+		List<SubscriberStats> stats = new ArrayList<SubscriberStats>();
+		for (Subscriber s : mSubscribers.values()) {
+			stats.add(s.getStats());
+		}
+		return stats;
+	}
+
+	private class Subscriber implements Runnable {
+
+		private final String mName;
+		private final OverflowPolicy mPolicy;
+		private final ArrayDeque<Event> mQueue = new ArrayDeque<Event>();
+		// Queued events by key, for COALESCE
+		private final Map<String, Event> mQueuedByKey = new HashMap<String, Event>();
+		private boolean mScheduled;
+		private boolean mClosed;
+
+		private long mDelivered;
+		private long mDropped;
+		private long mCoalesced;
+		private long mLastLag;
+		private long mMaxLag;
+
+		Subscriber(String name, OverflowPolicy policy) {
+			mName = name;
+			mPolicy = policy;
+		}
+
+		/**
+		 * @return true if the caller needs to schedule a drain
+		 */
+		synchronized boolean offer(String key, Runnable task) {
+			if (mClosed) {
+				return false;
+			}
+			if (mPolicy == OverflowPolicy.COALESCE && key != null) {
+				Event queued = mQueuedByKey.get(key);
+				if (queued != null) {
+					queued.task = task;
+					mCoalesced++;
+					return false;
+				}
+			}
+			if (mPolicy == OverflowPolicy.BLOCK && mQueue.size() >= mCapacity) {
+				long deadline = SystemClock.uptimeMillis() + BLOCK_TIMEOUT_MS;
+				long remaining;
+				while (mQueue.size() >= mCapacity && !mClosed && (remaining = deadline - SystemClock.uptimeMillis()) > 0) {
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				if (mClosed) {
+					return false;
+				}
+			}
+			if (mPolicy == OverflowPolicy.UNBOUNDED) {
+				if (mQueue.size() == mCapacity) {
+					CTLog.getInstance().log("shell", Priority.WARN_INT, "Observer queue for " + mName + " has grown past " + mCapacity + " events");
+				}
+			} else if (mQueue.size() >= mCapacity) {
+				unkey(mQueue.poll());
+				mDropped++;
+				CTLog.getInstance().log("shell", Priority.WARN_INT, "Observer queue full, dropped oldest event for " + mName);
+			}
+			Event event = new Event(key, task, SystemClock.uptimeMillis());
+			mQueue.add(event);
+			if (mPolicy == OverflowPolicy.COALESCE && key != null) {
+				mQueuedByKey.put(key, event);
+			}
+			if (mScheduled) {
+				return false;
+			}
+			mScheduled = true;
+			return true;
+		}
+
+		/**
+		 * Stop coalescing into an event that has left the queue
+		 */
+		private void unkey(Event event) {
+			if (event.key != null && mQueuedByKey.get(event.key) == event) {
+				mQueuedByKey.remove(event.key);
+			}
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+				Event event;
+				synchronized (this) {
+					event = mQueue.poll();
+					if (event == null) {
+						mScheduled = false;
+						return;
+					}
+					unkey(event);
+					// Room for any blocked producer
+					notifyAll();
+				}
+
+				long lag = SystemClock.uptimeMillis() - event.queuedAt;
+				if (lag > LAG_WARN_MS) {
+					CTLog.getInstance().log("shell", Priority.WARN_INT, "Observer " + mName + " is " + lag + "ms behind");
+				}
+				try {
+					event.task.run();
+				} catch (RuntimeException e) {
+					CTLog.getInstance().log("shell", Priority.ERROR_INT, "Observer " + mName + " failed: " + e.getMessage());
+				}
+
+				synchronized (this) {
+					mDelivered++;
+					mLastLag = lag;
+					mMaxLag = Math.max(mMaxLag, lag);
+				}
+			}
+
+			// More waiting, go to the back of the executor's queue
+			synchronized (this) {
+				if (mQueue.isEmpty()) {
+					mScheduled = false;
+					return;
+				}
+			}
+			mExecutor.execute(this);
+		}
+
+		synchronized void close() {
+			mClosed = true;
+			mQueue.clear();
+			mQueuedByKey.clear();
+			notifyAll();
+		}
+
+		synchronized SubscriberStats getStats() {
+			return new SubscriberStats(mName, mQueue.size(), mDelivered, mDropped, mCoalesced, mLastLag, mMaxLag);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.commontime.mdesign.plugins.notificationsbase;
+
+import com.commontime.mdesign.plugins.base.CTLog;
+
+import org.apache.log4j.Priority;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wakes the outbox sender when there may be something to send: a message
+ * was queued, the network came back or a retry fell due. Signals arriving
+ * while a pass is running are folded into one more pass afterwards, so only
+ * one pass ever runs at a time, and nothing runs at all while the outbox
+ * has nothing due.
+ * <p>
+ * While paused, for example with no network, signals are remembered and a
+ * single pass runs on {@link #resume()}, unless one is asked for with
+ * {@link #signalNow()}.
+ */
+class OutboxSignal {
+
+	interface Pass {
+		/**
+		 * Queue whatever is due.
+		 *
+		 * @return when the next waiting message falls due, or -1 if none is
+		 */
+		long run();
+	}
+
+	private final Executor mExecutor;
+	private final ScheduledExecutorService mTimer;
+	private final Pass mPass;
+
+	private boolean mRunning;
+	private boolean mSignalled;
+	private boolean mPaused;
+	// The next pass runs even if paused
+	private boolean mForced;
+
+	private ScheduledFuture<?> mWakeHandle;
+	private long mWakeAt;
+
+	private final Runnable mDrain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	private final Runnable mWake = new Runnable() {
+		@Override
+		public void run() {
+			signal();
+		}
+	};
+
+	OutboxSignal(Executor executor, ScheduledExecutorService timer, Pass pass) {
+		mExecutor = executor;
+		mTimer = timer;
+		mPass = pass;
+	}
+
+	void signal() {
+		synchronized (this) {
+			mSignalled = true;
+			if (mPaused || mRunning) {
+				return;
+			}
+			mRunning = true;
+		}
+		mExecutor.execute(mDrain);
+	}
+
+	/**
+	 * Signal, running a pass even if paused
+	 */
+	void signalNow() {
+		synchronized (this) {
+			mSignalled = true;
+			mForced = true;
+			if (mRunning) {
+				return;
+			}
+			mRunning = true;
+		}
+		mExecutor.execute(mDrain);
+	}
+
+	/**
+	 * Signal at this time, unless a wake is already set for earlier
+	 */
+	synchronized void wakeAt(long at) {
+		if (mWakeHandle != null && !mWakeHandle.isDone() && mWakeAt <= at) {
+			return;
+		}
+		if (mWakeHandle != null) {
+			mWakeHandle.cancel(false);
+		}
+		mWakeAt = at;
+		mWakeHandle = mTimer.schedule(mWake, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void pause() {
+		mPaused = true;
+	}
+
+	void resume() {
+		synchronized (this) {
+			mPaused = false;
+		}
+		signal();
+	}
+
+	private void drain() {
+		while (true) {
+			synchronized (this) {
+				if (!mSignalled || (mPaused && !mForced)) {
+					mRunning = false;
+					return;
+				}
+				mSignalled = false;
+				mForced = false;
+			}
+
+			long next = -1;
+			try {
+				next = mPass.run();
+			} catch (RuntimeException e) {
+				CTLog.getInstance().log("notify-send", Priority.ERROR_INT, "Outbox pass failed: " + e.getMessage());
+			}
+			if (next > 0) {
+				wakeAt(next);
+			}
+		}
+	}
+}
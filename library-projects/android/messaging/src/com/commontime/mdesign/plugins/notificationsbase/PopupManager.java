@@ -58,6 +58,16 @@ public class PopupManager {
         }
     }
 
+    public void addNotifications(Map<String, String> messageNotifications) {
+        if( Build.VERSION.SDK_INT >= 16 ) {
+            addInboxStyleNotifications(messageNotifications);
+        } else {
+            for( String messageId : messageNotifications.keySet() ) {
+                addOldNotification(messageId, messageNotifications.get(messageId));
+            }
+        }
+    }
+
     private void addOldNotification(String messageId, String notification) {
         String packageName = context.getPackageName();
         Intent launchIntent = context.getPackageManager().getLaunchIntentForPackage(packageName);
@@ -92,6 +102,12 @@ public class PopupManager {
         updateInboxStyleNotifications();
     }
 
+    private synchronized void addInboxStyleNotifications(Map<String, String> messageNotifications) {
+        notifications.putAll(messageNotifications);
+
+        updateInboxStyleNotifications();
+    }
+
     private synchronized void updateInboxStyleNotifications() {
 
         NotificationManager notifManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
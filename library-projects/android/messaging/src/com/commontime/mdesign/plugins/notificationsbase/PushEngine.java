@@ -1,6 +1,7 @@
 package com.commontime.mdesign.plugins.notificationsbase;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.sqlite.SQLiteException;
 import android.os.CountDownTimer;
@@ -20,37 +21,57 @@ import org.json.JSONException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 
 public class PushEngine implements PushSystemObserver {
 
-	private ExecutorService singleExecutor = Executors.newSingleThreadExecutor();
-
 	private boolean avoidUnbind;
 
 	private static HashMap<String, PushSystemInterface> systemsByName = new HashMap<String, PushSystemInterface>();
 
-	private Map<String, Map<String, List<String>>> channelCallbackidMap = new ConcurrentHashMap<String, Map<String, List<String>>>();
-	private Map<String, MessageReceiveObserver> callbackIdCallbackMap = new ConcurrentHashMap<String, MessageReceiveObserver>();
+	// Replaced wholesale on register/unregister, read without locking on delivery
+	private volatile ReceiverRoutes receiverRoutes = ReceiverRoutes.EMPTY;
+
+	private static final int TRANSPORT_THREADS = 8;
+	private static final int TRANSPORT_QUEUE_CAPACITY = 256;
+
+	// Push systems run their sends and file transfers here rather than on a thread each
+	private final TransportExecutor transportExecutor = new TransportExecutor("PushEngine-transport", TRANSPORT_THREADS, TRANSPORT_QUEUE_CAPACITY);
+
+	private static final String PREFS_EXTRA = "extra";
+	private static final String PREF_DISPATCH_THREADS = "observerDispatchThreads";
+	private static final String PREF_DISPATCH_QUEUE_CAPACITY = "observerDispatchQueueCapacity";
+	private static final String PREF_DISPATCH_OVERFLOW_POLICY = "observerDispatchOverflowPolicy";
+	private static final int DISPATCH_THREADS = 2;
+	private static final int DISPATCH_QUEUE_CAPACITY = 1024;
+	private static final String STORE_SUBSCRIBER = "store:";
+	private static final String OUTBOX_SUBSCRIBER = "outbox:";
+	private static final String RECEIVER_SUBSCRIBER = "receiver:";
+	private static final String POPUP_SUBSCRIBER = "popups";
+
+	// Observers are called from here rather than from the threads receiving and storing messages
+	private final ObserverDispatcher dispatcher;
 	private Map<String, MessageChangeObserver> storeCallbackIdCallbackMap = new ConcurrentHashMap<String, MessageChangeObserver>();
 	private Map<String, OutboxChangeObserver> outboxCallbackIdCallbackMap = new ConcurrentHashMap<String, OutboxChangeObserver>();
 
 	private CountDownTimer scheduleTimer = null;
 	private Map<String, Messenger> replyMessageMap = new HashMap<String, Messenger>();
-	private boolean done = true;
 	private boolean uiAvailable = false;
 
 	Map<String, PushSystem> systems = new HashMap<String, PushSystem>();
@@ -61,10 +82,229 @@ public class PushEngine implements PushSystemObserver {
 
 	private Context context;
 
+	private static final String PREF_WIPED_AT = "DBWipedAt";
+	private static final String PREF_CONFIG_TIME = "configTime";
+
+	// Messages dated before this are rejected, -1 until worked out
+	private volatile long validityCutoff = -1;
+	// Bumped on every relevant preference change, so a cutoff worked out across one isn't kept
+	private volatile int validityGeneration;
+	private long installTime = -1;
+
+	// Held here because SharedPreferences only keeps a weak reference to its listeners
+	private final SharedPreferences.OnSharedPreferenceChangeListener validityCutoffListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+			if (key == null || PREF_WIPED_AT.equals(key) || PREF_CONFIG_TIME.equals(key)) {
+				validityGeneration++;
+				validityCutoff = -1;
+			}
+		}
+	};
+
+	private static final String PREF_SEND_LANE_CONCURRENCY = "sendLaneConcurrency";
+	private static final String PREF_SEND_LANE_BULK_CONCURRENCY = "sendLaneBulkConcurrency";
+	// Content this size or larger, or with files attached, goes on a lane's bulk budget
+	private static final int BULK_CONTENT_SIZE = 64 * 1024;
+	private static final String FILE_REF_MARKER = "\"#fileref:";
+
+	// Wakes the sender for retries
+	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+
+	// Sends in progress across all lanes run on these threads; each lane limits its own share
+	private final SendLanes sendLanes = new SendLanes(Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "PushEngine-send");
+		}
+	}), new SendLanes.Sender() {
+
+		@Override
+		public long send(PushSystemInterface system, PushMessage msg) {
+
+			CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Sending message: " + msg.getId());
+			notifyMessageSending(msg);
+
+			try {
+				PushSystemInterface.SendResult sendResult = null;
+				try {
+					sendResult = system.sendMessage(msg).get();
+				} catch (RejectedExecutionException e) {
+					// Transport is saturated; leave this and the rest of the lane for later
+					CTLog.getInstance().log("notify-send", Priority.WARN_INT, "Transport busy, will retry: " + msg.getId());
+					notifyMessageNotSent(msg, true);
+					return System.currentTimeMillis() + SendLanes.FAILURE_RETRY_DELAY_MS;
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					CTLog.getInstance().log("shell", Priority.ERROR_INT, "Interrupted while sending message: " + e.getMessage());
+					notificationsDB.removeOutboxMessage(msg.getId());
+					notifyMessageNotSent(msg, false);
+					return SendLanes.CARRY_ON;
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+					CTLog.getInstance().log("shell", Priority.ERROR_INT, "ExecutionException while sending message: " + e.getMessage());
+					if( e.getCause() instanceof IOException ) {
+						deferMessage(msg);
+						notifyMessageNotSent(msg, true);
+					} else {
+						notificationsDB.removeOutboxMessage(msg.getId());
+						notifyMessageNotSent(msg, false);
+					}
+					return SendLanes.CARRY_ON;
+				}
+				if (sendResult == PushSystemInterface.SendResult.Success) {
+					notifyMessageSent(msg);
+					CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Sent OK, removing from outbox: " + msg.getId());
+					notificationsDB.removeOutboxMessage(msg.getId());
+				} else if(sendResult == PushSystemInterface.SendResult.Failed) {
+					// Don't try any more messages on this lane if one has failed
+					return handleSendFailure(msg);
+				} else {	// FailedDoNotRetry
+					notifyMessageNotSent(msg, false);
+					CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Failed to send, removing from outbox: " + msg.getId());
+					notificationsDB.removeOutboxMessage(msg.getId());
+				}
+			} catch (NotificationsDBException e) {
+				CTLog.getInstance().log("shell", Priority.ERROR_INT, "Failed to remove message from outbox." + e.getMessage());
+			}
+			return SendLanes.CARRY_ON;
+		}
+
+		/**
+		 * @return when the rest of the lane should be tried again: with the
+		 *         failed message if it is being retried, or after a short
+		 *         pause if it was its only try
+		 */
+		private long handleSendFailure(PushMessage msg) throws NotificationsDBException {
+			long retryAt = -1;
+			if( msg.getExpiry() == 0 ) {
+				CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Failed to send, and that was the only try: " + msg.getId());
+				notifyMessageNotSent(msg, false);
+				notificationsDB.removeOutboxMessage(msg.getId());
+			} else {
+				CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Failed to send, will retry: " + msg.getId());
+				retryAt = deferMessage(msg);
+				notifyMessageNotSent(msg, true);
+			}
+			return retryAt > 0 ? retryAt : System.currentTimeMillis() + SendLanes.FAILURE_RETRY_DELAY_MS;
+		}
+
+		@Override
+		public void retryAt(long at) {
+			outboxSignal.wakeAt(at);
+		}
+	});
+
+	// Runs one send pass at a time, when woken by a new message, the network or a retry falling due
+	private final OutboxSignal outboxSignal = new OutboxSignal(Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "PushEngine-outbox");
+		}
+	}), scheduler, new OutboxSignal.Pass() {
+
+		/**
+		 * Queue the outbox messages that are due on their push system's send
+		 * lane. Messages already queued or being sent are left where they are,
+		 * and ones waiting out a retry delay are left until they are due,
+		 * along with anything after them on the same channel and subchannel.
+		 */
+		@Override
+		public long run() {
+
+			long now = System.currentTimeMillis();
+
+			sendLanes.beginPass();
+			try {
+				List<PushMessage> messagesToSend = notificationsDB.getDueOutboxMessages(now);
+
+				if( messagesToSend.size() > 0 ) {
+					CTLog.getInstance().log("notify-send", Priority.INFO_INT, "Starting sendMessages.  There are " + messagesToSend.size() + " messages to send");
+
+					SharedPreferences prefs = Prefs.getExtraPreferences();
+					sendLanes.setMaxInFlight(prefs.getInt(PREF_SEND_LANE_CONCURRENCY, 1), prefs.getInt(PREF_SEND_LANE_BULK_CONCURRENCY, 1));
+					for (PushMessage msg : messagesToSend) {
+						sendLanes.submit(getSystem(msg), msg, isBulk(msg));
+					}
+				}
+
+				// Wake again for messages still waiting out a retry delay
+				return notificationsDB.getNextOutboxAttemptTime(now);
+			} catch (NotificationsDBException e) {
+				CTLog.getInstance().log("notify-send", Priority.ERROR_INT, "Failed to retrieve messages from outbox. No messages will be sent.");
+				return -1;
+			} finally {
+				sendLanes.endPass();
+			}
+		}
+	});
+
+	private ScheduledFuture<?> expiryHandle;
+	private ScheduledFuture<?> orphanHandle;
+
+	// Housekeeping runs on its own low priority thread so it never holds up sending
+	private final ScheduledExecutorService housekeepingScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+					r.run();
+				}
+			}, "PushEngine-housekeeping");
+		}
+	});
+
+	private static final int EXPIRY_BATCH_SIZE = 100;
+	private static final int EXPIRY_MAX_BATCHES = 10;
+	private static final long EXPIRY_INTERVAL_MINUTES = 15;
+	private static final int ORPHAN_MAX_FILES = 200;
+	private static final long ORPHAN_INTERVAL_MINUTES = 60;
+
 	public PushEngine(Context context) {
 		this.context = context;
+		dispatcher = createDispatcher(context.getSharedPreferences(PREFS_EXTRA, Context.MODE_PRIVATE));
 		popupManager = new PopupManager(context);
 		notificationsDB = new NotificationsDB(context);
+		startHousekeepingSchedule();
+	}
+
+	/**
+	 * Store, receiver and popup events are dispatched while holding this
+	 * engine's lock, so they must never wait for room. Store change
+	 * notifications use the configured policy when their queues are full,
+	 * coalescing by default. Received messages and popups can't be dropped,
+	 * so their queues grow instead. Outbox events come from the send
+	 * threads and wait for room.
+	 */
+	private static ObserverDispatcher createDispatcher(SharedPreferences prefs) {
+		ObserverDispatcher.OverflowPolicy policy = ObserverDispatcher.OverflowPolicy.COALESCE;
+		String policyName = prefs.getString(PREF_DISPATCH_OVERFLOW_POLICY, null);
+		if (policyName != null) {
+			try {
+				policy = ObserverDispatcher.OverflowPolicy.valueOf(policyName);
+			} catch (IllegalArgumentException e) {
+				CTLog.getInstance().log("shell", Priority.WARN_INT, "Unknown observer overflow policy: " + policyName);
+			}
+		}
+		if (policy == ObserverDispatcher.OverflowPolicy.BLOCK) {
+			CTLog.getInstance().log("shell", Priority.WARN_INT, "Observers dispatched under the engine lock can't block, coalescing instead");
+			policy = ObserverDispatcher.OverflowPolicy.COALESCE;
+		}
+
+		int threads = Math.max(1, prefs.getInt(PREF_DISPATCH_THREADS, DISPATCH_THREADS));
+		int capacity = Math.max(1, prefs.getInt(PREF_DISPATCH_QUEUE_CAPACITY, DISPATCH_QUEUE_CAPACITY));
+		ObserverDispatcher dispatcher = new ObserverDispatcher(Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "PushEngine-dispatch");
+			}
+		}), capacity, policy);
+		dispatcher.setPolicy(OUTBOX_SUBSCRIBER, ObserverDispatcher.OverflowPolicy.BLOCK);
+		dispatcher.setPolicy(RECEIVER_SUBSCRIBER, ObserverDispatcher.OverflowPolicy.UNBOUNDED);
+		dispatcher.setPolicy(POPUP_SUBSCRIBER, ObserverDispatcher.OverflowPolicy.UNBOUNDED);
+		return dispatcher;
 	}
 
 	private synchronized void registerStoreCallback(String callbackid, MessageChangeObserver messageChangeObserver) {
@@ -73,6 +313,7 @@ public class PushEngine implements PushSystemObserver {
 
 	private synchronized void unregisterStoreCallback(String callbackid) {
 		storeCallbackIdCallbackMap.remove(callbackid);
+		dispatcher.remove(STORE_SUBSCRIBER + callbackid);
 	}
 
 	private synchronized void registerOutboxCallback(String callbackid, OutboxChangeObserver outboxChangeObserver) {
@@ -81,166 +322,239 @@ public class PushEngine implements PushSystemObserver {
 
 	private synchronized void unregisterOutboxCallback(String callbackid) {
 		outboxCallbackIdCallbackMap.remove(callbackid);
+		dispatcher.remove(OUTBOX_SUBSCRIBER + callbackid);
 	}
 
 	private synchronized void registerCallback(String callbackid, String channel, String subchannel, MessageReceiveObserver messageReceiveObserver) {
-
-		if (!channelCallbackidMap.containsKey(channel))
-			channelCallbackidMap.put(channel, new ConcurrentHashMap<String, List<String>>());
-
-		if (!channelCallbackidMap.get(channel).containsKey(subchannel))
-			channelCallbackidMap.get(channel).put(subchannel, new ArrayList<String>());
-
-		if (callbackIdCallbackMap.containsKey(callbackid)) {
+		if (receiverRoutes.contains(callbackid)) {
 			CTLog.getInstance().log("shell", Priority.WARN_INT, "There is already a recevier registered on: " + callbackid);
-			unregisterCallback(callbackid);
 		}
-
-		channelCallbackidMap.get(channel).get(subchannel).add(callbackid);
-		callbackIdCallbackMap.put(callbackid, messageReceiveObserver);
+		receiverRoutes = receiverRoutes.with(new ReceiverRoutes.Receiver(callbackid, channel, subchannel, messageReceiveObserver));
 	}
 
 	private synchronized void unregisterCallback(String callbackid) {
-		callbackIdCallbackMap.remove(callbackid);
+		receiverRoutes = receiverRoutes.without(callbackid);
+		dispatcher.remove(RECEIVER_SUBSCRIBER + callbackid);
+	}
 
-		// remove the callbackid from the list
-		for (Map<String, List<String>> innermap : channelCallbackidMap.values()) {
-			for (List<String> list : innermap.values()) {
-				if (list.contains(callbackid)) {
-					list.remove(callbackid);
-				}
+	private void notifyStoreChange(final PushMessage message, final String changeType, String reason) {
+		for (String key : storeCallbackIdCallbackMap.keySet()) {
+			final MessageChangeObserver mco = storeCallbackIdCallbackMap.get(key);
+			if (mco == null) {
+				continue;
 			}
+			CTLog.getInstance().log("shell", Priority.INFO_INT, "StoreChangeNotifying (" + reason + "): " + message.getId() + " to: " + key);
+			dispatcher.dispatch(STORE_SUBSCRIBER + key, message.getId() + ":" + changeType, new Runnable() {
+				@Override
+				public void run() {
+					mco.messageChanged(message, changeType);
+				}
+			});
 		}
 	}
 
+	/**
+	 * Popups go through one queue so that adding and clearing them stays in order
+	 */
+	private void dispatchPopups(Runnable task) {
+		dispatcher.dispatch(POPUP_SUBSCRIBER, null, task);
+	}
+
+	/**
+	 * Per observer queue depth, drops and delivery lag
+	 */
+	public String getDispatchStats() {
+		return dispatcher.getStats().toString();
+	}
+
+	public TransportExecutor getTransportExecutor() {
+		return transportExecutor;
+	}
+
 	@Override
-	public synchronized void messageReceived(PushMessage message) {
+	public void messageReceived(PushMessage message) {
+		messagesReceived(Collections.singletonList(message));
+	}
+
+	@Override
+	public synchronized void messagesReceived(List<PushMessage> messages) {
+
+		CTLog.getInstance().log("shell", Priority.INFO_INT, "Messages received: " + messages.size());
+
+		List<PushMessage> accepted = new ArrayList<PushMessage>();
+		for (PushMessage message : messages) {
+
+			CTLog.getInstance().log("shell", Priority.INFO_INT, "Message received: " + message.getId());
+
+			if( ! isMessageValid(message) ) {
+				continue;
+			}
 
-		CTLog.getInstance().log("shell", Priority.INFO_INT, "Message received: " + message.getId());
+			if (message.expired()) {
+				CTLog.getInstance().log("shell", Priority.WARN_INT, "Message id: " + message.getId() + " has expired.");
+				continue;
+			}
+
+			accepted.add(message);
+		}
 
-		if( ! isMessageValid(message) ) {
+		if (accepted.isEmpty()) {
 			return;
 		}
 
-		// Have we already received this message
+		// Add new messages to the DB, skipping any we have already received
+		List<PushMessage> added;
 		try {
-			if( notificationsDB.getMessage(message.getId()) != null ) {
-				CTLog.getInstance().log("shell", Priority.INFO_INT, "Message: " + message.getId() + " already received." );
-				return;
-			}
-		} catch (NotificationsDBException ex) {
-			CTLog.getInstance().log("shell", Priority.INFO_INT, "Message: " + message.getId() + " could not be retrieved from db." );
+			added = notificationsDB.addInboxMessages(accepted);
+		} catch (SQLiteException e ) {
+			CTLog.getInstance().log("shell", Priority.ERROR_INT, "Failed receiving messages: " + e.getMessage());
 			return;
 		}
 
-		if (!message.expired()) {
-
-			// Add new message to the DB
-			try {
-
-				notificationsDB.addInboxMessage(message);
+		if (added.size() < accepted.size()) {
+			Set<String> addedIds = new HashSet<String>();
+			for (PushMessage message : added) {
+				addedIds.add(message.getId());
+			}
+			for (PushMessage message : accepted) {
+				if (!addedIds.contains(message.getId())) {
+					CTLog.getInstance().log("shell", Priority.INFO_INT, "Message: " + message.getId() + " already received." );
+				}
+			}
+			CTLog.getInstance().log("shell", Priority.DEBUG_INT, "Duplicate probe hits: " + notificationsDB.getDuplicateProbeHits() + ", misses: " + notificationsDB.getDuplicateProbeMisses());
+		}
 
-				if (message.handle()) {
-					if (!message.getNotification().isEmpty()) {
-						popupManager.addNotification(UUID.randomUUID().toString(), message.getNotification());
-					}
+		// Stored, from here on listeners are notified asynchronously
+		List<PushMessage> stored = new ArrayList<PushMessage>();
+		for (final PushMessage message : added) {
+			if (message.handle()) {
+				if (!message.getNotification().isEmpty()) {
+					dispatchPopups(new Runnable() {
+						@Override
+						public void run() {
+							popupManager.addNotification(UUID.randomUUID().toString(), message.getNotification());
+						}
+					});
+				}
+				try {
 					deleteMessage(message.getId());
-					return;
-				} else {
-
-					// Are there any 'store monitoring' notifications to fire
-					for (String key : storeCallbackIdCallbackMap.keySet()) {
-						MessageChangeObserver mco = storeCallbackIdCallbackMap.get(key);
-						CTLog.getInstance().log("shell", Priority.INFO_INT, "StoreChangeNotifying (rcv): " + message.getId() + " to: " + key);
-
-						mco.messageChanged(message, MessageChangeObserver.CREATE_TYPE);
-					}
+				} catch (NotificationsDBException e) {
+					CTLog.getInstance().log("shell", Priority.ERROR_INT, "Failed receiving message: " + e.getMessage());
+				}
+			} else {
+				stored.add(message);
+			}
+		}
 
-					// Notify the user if needed
-					if (!(message.getNotification() == null || message.getNotification().isEmpty()) ) {
-						CTLog.getInstance().log("shell", Priority.INFO_INT, "Message contains notification: " + message.getNotification());
-						if( uiAvailable && Prefs.get().getBoolean("AllowForegroundNotifications", false) ) {
-							// Do broadcast
-							popupManager.addLocalNotification(message.getId(), message.getNotification());
-						} else {
-							// Display an unlinked popup
-							popupManager.addNotification(message.getId(), message.getNotification());
-						}
-					}
+		if (stored.isEmpty()) {
+			return;
+		}
 
-					// Is anyone listening on this channel
-					if (channelCallbackidMap.containsKey(message.getChannel())) {
-						// Are they also listening on the right subchannel
-						Map<String, List<String>> subChannelMap = channelCallbackidMap.get(message.getChannel());
-						if (subChannelMap.containsKey(message.getSubchannel()) ||
-								subChannelMap.containsKey("")) {
+		// Are there any 'store monitoring' notifications to fire
+		for (PushMessage message : stored) {
+			notifyStoreChange(message, MessageChangeObserver.CREATE_TYPE, "rcv");
+		}
 
-							// So this is the list of callbackIds we need to address - real subchannels
-							List<String> callbacks = channelCallbackidMap.get(message.getChannel()).get(message.getSubchannel());
+		// Notify the user if needed
+		final List<PushMessage> toNotify = stored;
+		dispatchPopups(new Runnable() {
+			@Override
+			public void run() {
+				notifyUser(toNotify);
+			}
+		});
 
-							// And this is the list of people listening on all subchannels
-							List<String> wildCallbacks = channelCallbackidMap.get(message.getChannel()).get("");
+		for (PushMessage message : stored) {
+			deliverToReceivers(message);
+		}
+	}
 
-							if( callbacks == null )
-								callbacks = new ArrayList<String>();
+	private void notifyUser(List<PushMessage> messages) {
+		boolean foreground = uiAvailable && Prefs.get().getBoolean("AllowForegroundNotifications", false);
+		Map<String, String> popups = new LinkedHashMap<String, String>();
 
-							if( wildCallbacks == null )
-								wildCallbacks = new ArrayList<String>();
+		for (PushMessage message : messages) {
+			if (!(message.getNotification() == null || message.getNotification().isEmpty()) ) {
+				CTLog.getInstance().log("shell", Priority.INFO_INT, "Message contains notification: " + message.getNotification());
+				if( foreground ) {
+					// Do broadcast
+					popupManager.addLocalNotification(message.getId(), message.getNotification());
+				} else {
+					popups.put(message.getId(), message.getNotification());
+				}
+			}
+		}
 
-							callbacks.addAll(wildCallbacks);
+		if (!popups.isEmpty()) {
+			// Display unlinked popups
+			popupManager.addNotifications(popups);
+		}
+	}
 
-							CTLog.getInstance().log("shell", Priority.INFO_INT, "There are : " + callbacks.size() + " listeners for this message");
+	private void deliverToReceivers(final PushMessage message) {
+		// Listeners on the message's subchannel, followed by those listening on all subchannels
+		ReceiverRoutes.Receiver[] receivers = receiverRoutes.route(message.getChannel(), message.getSubchannel());
+		if (receivers.length == 0) {
+			return;
+		}
 
-							for (String callbackid : callbacks) {
-								// Send the message to the service, where a client
-								// is waiting.
-								if (callbackIdCallbackMap.containsKey(callbackid)) {
+		CTLog.getInstance().log("shell", Priority.INFO_INT, "There are : " + receivers.length + " listeners for this message");
 
-									CTLog.getInstance().log("shell", Priority.INFO_INT, "Delivering: " + message.getId() + " to: " + callbackid);
-									callbackIdCallbackMap.get(callbackid).messageReceived(message);
-								}
-							}
-						}
-					}
+		for (final ReceiverRoutes.Receiver receiver : receivers) {
+			// Send the message to the service, where a client
+			// is waiting.
+			CTLog.getInstance().log("shell", Priority.INFO_INT, "Delivering: " + message.getId() + " to: " + receiver.callbackid);
+			dispatcher.dispatch(RECEIVER_SUBSCRIBER + receiver.callbackid, message.getId(), new Runnable() {
+				@Override
+				public void run() {
+					receiver.observer.messageReceived(message);
 				}
-
-			} catch (NotificationsDBException e) {
-				CTLog.getInstance().log("shell", Priority.ERROR_INT, "Failed receiving message: " + e.getMessage());
-			} catch (SQLiteException e ) {
-				CTLog.getInstance().log("shell", Priority.ERROR_INT, "Failed receiving message: " + e.getMessage());
-			}
-
-		} else {
-			CTLog.getInstance().log("shell", Priority.WARN_INT, "Message id: " + message.getId() + " has expired.");
+			});
 		}
 	}
 
-	private boolean isMessageValid(PushMessage message) {
+	/**
+	 * The latest of the last wipe, installation and pre-configuration times.
+	 * Install time can't change while we're running, the other two are
+	 * watched so the cutoff is recalculated when either is written.
+	 */
+	private synchronized long getValidityCutoff() throws NameNotFoundException {
+		long cutoff = validityCutoff;
+		if (cutoff >= 0) {
+			return cutoff;
+		}
+		if (installTime < 0) {
+			installTime = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).firstInstallTime;
+			Prefs.getExtraPreferences().registerOnSharedPreferenceChangeListener(validityCutoffListener);
+			Prefs.get().registerOnSharedPreferenceChangeListener(validityCutoffListener);
+		}
 
-		long wiped = Prefs.getExtraPreferences().getLong("DBWipedAt", 0);
-		if( wiped > message.getDate()) {
-			CTLog.getInstance().log("shell", Priority.INFO_INT, "Message: " + message.getId() + " sent before last wipe time." );
-			return false;
+		int generation = validityGeneration;
+		long wiped = Prefs.getExtraPreferences().getLong(PREF_WIPED_AT, 0);
+		long configTime = Prefs.get().getLong(PREF_CONFIG_TIME, 0);
+		cutoff = Math.max(installTime, Math.max(wiped, configTime));
+		if (generation == validityGeneration) {
+			validityCutoff = cutoff;
 		}
+		return cutoff;
+	}
 
-		// Were we installed after this message's date?
-		try {
-			long installed = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).firstInstallTime;
+	private boolean isMessageValid(PushMessage message) {
 
-			if( installed > message.getDate() ) {
-				CTLog.getInstance().log("shell", Priority.INFO_INT, "Message: " + message.getId() + " sent before installation." );
+		// Sent before the last wipe, installation or pre-configuration?
+		long cutoff = validityCutoff;
+		if (cutoff < 0) {
+			try {
+				cutoff = getValidityCutoff();
+			} catch (NameNotFoundException e1) {
+				CTLog.getInstance().log("shell", Priority.INFO_INT, "Message: " + message.getId() + " error: " + e1.getMessage() );
+				e1.printStackTrace();
 				return false;
 			}
-		} catch (NameNotFoundException e1) {
-			CTLog.getInstance().log("shell", Priority.INFO_INT, "Message: " + message.getId() + " error: " + e1.getMessage() );
-			e1.printStackTrace();
-			return false;
 		}
 
-		// Were we configured after this message's date?
-		long configTime = Prefs.get().getLong("configTime", 0);
-		if( configTime > message.getDate() ) {
-			CTLog.getInstance().log("shell", Priority.INFO_INT, "Message: " + message.getId() + " sent before pre-configuration.");
+		if( cutoff > message.getDate() ) {
+			CTLog.getInstance().log("shell", Priority.INFO_INT, "Message: " + message.getId() + " sent before last wipe, installation or pre-configuration." );
 			return false;
 		}
 
@@ -313,95 +627,25 @@ public class PushEngine implements PushSystemObserver {
 		startSendSchedule();
 	}
 
-	public void doSendMessages() {
-
-		Runnable sender = new Runnable() {
-
-			@Override
-			public void run() {
-
-				List<PushMessage> messagesToSend;
-
-				try {
-					messagesToSend = notificationsDB.getOutboxMessages();
-				} catch (NotificationsDBException e) {
-					CTLog.getInstance().log("notify-send", Priority.ERROR_INT, "Failed to retrieve messages from outbox. No messages will be sent.");
-					done = true;
-					return;
-				}
-
-				done = true;
-
-				if( messagesToSend.size() == 0) {
-					// Nothing to send, stop the schedule
-					stopSendSchedule();
-					stopLimitedSendSchedule();
-					return;
-				}
-
-				CTLog.getInstance().log("notify-send", Priority.INFO_INT, "Starting sendMessages.  There are " + messagesToSend.size() + " messages to send");
-
-				for (PushMessage msg : messagesToSend) {
-
-					CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Sending message: " + msg.getId());
-					notifyMessageSending(msg);
-
-					try {
-						PushSystemInterface.SendResult sendResult = null;
-						try {
-							sendResult = getSystem(msg).sendMessage(msg).get();
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-							CTLog.getInstance().log("shell", Priority.ERROR_INT, "Interrupted while sending message: " + e.getMessage());
-							notificationsDB.removeOutboxMessage(msg.getId());
-							notifyMessageNotSent(msg, false);
-							continue;
-						} catch (ExecutionException e) {
-							e.printStackTrace();
-							CTLog.getInstance().log("shell", Priority.ERROR_INT, "ExecutionException while sending message: " + e.getMessage());
-							if( e.getCause() instanceof IOException ) {
-								notifyMessageNotSent(msg, true);
-							} else {
-								notificationsDB.removeOutboxMessage(msg.getId());
-								notifyMessageNotSent(msg, false);
-							}
-							continue;
-						}
-						if (sendResult == PushSystemInterface.SendResult.Success) {
-							notifyMessageSent(msg);
-							CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Sent OK, removing from outbox: " + msg.getId());
-							notificationsDB.removeOutboxMessage(msg.getId());
-						} else if(sendResult == PushSystemInterface.SendResult.Failed) {
-							handleSendFailure(msg);
-							break;	// Don't try any more messages if one has failed
-						} else {	// FailedDoNotRetry
-							notifyMessageNotSent(msg, false);
-							CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Failed to send, removing from outbox: " + msg.getId());
-							notificationsDB.removeOutboxMessage(msg.getId());
-						}
-					} catch (NotificationsDBException e) {
-						CTLog.getInstance().log("shell", Priority.ERROR_INT, "Failed to remove message from outbox." + e.getMessage());
-					}
-				}
-
-			}
+	private long deferMessage(PushMessage msg) throws NotificationsDBException {
+		long nextAttempt = notificationsDB.deferOutboxMessage(msg.getId());
+		if (nextAttempt > 0) {
+			outboxSignal.wakeAt(nextAttempt);
+		}
+		return nextAttempt;
+	}
 
-			private void handleSendFailure(PushMessage msg) throws NotificationsDBException {
-				if( msg.getExpiry() == 0 ) {
-					CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Failed to send, and that was the only try: " + msg.getId());
-					notifyMessageNotSent(msg, false);
-					notificationsDB.removeOutboxMessage(msg.getId());
-				} else {
-					CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Failed to send, will retry: " + msg.getId());
-					notifyMessageNotSent(msg, true);
-				}
-			}
-		};
+	private static boolean isBulk(PushMessage msg) {
+		String content = msg.getContent();
+		return content != null && (content.length() >= BULK_CONTENT_SIZE || content.contains(FILE_REF_MARKER));
+	}
 
-		if(done) {
-			done = false;
-			singleExecutor.execute(sender);
-		}
+	/**
+	 * Run a send pass for whatever in the outbox is due, even while sending
+	 * is stopped, as a single check is an explicit request to send
+	 */
+	public void doSendMessages() {
+		outboxSignal.signalNow();
 	}
 
 	protected void notifyMessageSending(PushMessage msg) {
@@ -416,20 +660,41 @@ public class PushEngine implements PushSystemObserver {
 		notifyOutbox(msg, OutboxChangeObserver.SENT_TYPE);
 	}
 
-	private void notifyOutbox(PushMessage msg, String type) {
+	private void notifyOutbox(final PushMessage msg, final String type) {
 		for (String key : outboxCallbackIdCallbackMap.keySet()) {
-			OutboxChangeObserver oco = outboxCallbackIdCallbackMap.get(key);
+			final OutboxChangeObserver oco = outboxCallbackIdCallbackMap.get(key);
 
 			if( oco != null ) {
 				CTLog.getInstance().log("shell", Priority.INFO_INT,
 						"OutboxChange ("+type+"): " + msg.getId() + " by: " + key);
-				oco.messageStatusChanged(msg, type);
+				dispatcher.dispatch(OUTBOX_SUBSCRIBER + key, msg.getId() + ":" + type, new Runnable() {
+					@Override
+					public void run() {
+						oco.messageStatusChanged(msg, type);
+					}
+				});
 			}
 		}
 	}
 
+	/**
+	 * Purge expired messages a bounded number of batches at a time, so a
+	 * large backlog is worked through over several runs.
+	 */
 	public void doExpiryHousekeeping() {
-		notificationsDB.clearExpiredMessages();
+		int messages = 0;
+		long reclaimed = 0;
+		for (int batch = 0; batch < EXPIRY_MAX_BATCHES; batch++) {
+			NotificationsDB.PurgeResult result = notificationsDB.purgeExpiredMessages(EXPIRY_BATCH_SIZE);
+			messages += result.messages;
+			reclaimed += result.bytesReclaimed;
+			if (result.messages < EXPIRY_BATCH_SIZE) {
+				break;
+			}
+		}
+		CTLog.getInstance().log("shell", Priority.INFO_INT, "Expiry housekeeping removed " + messages + " messages, reclaimed " + reclaimed + " bytes");
+		CTLog.getInstance().log("shell", Priority.DEBUG_INT, "Observer dispatch: " + getDispatchStats());
+		CTLog.getInstance().log("shell", Priority.DEBUG_INT, "Transport executor: " + transportExecutor.getStats());
 	}
 
 	public void cancelReceiveOutboxNotification(String callbackToCancel) {
@@ -442,10 +707,11 @@ public class PushEngine implements PushSystemObserver {
 		replyMessageMap.remove(callbackid);
 	}
 
-	public void cancelAllReceiveMessageNotifications() {
-		for (String callbackid : callbackIdCallbackMap.keySet()) {
-			unregisterCallback(callbackid);
+	public synchronized void cancelAllReceiveMessageNotifications() {
+		for (String callbackid : receiverRoutes.getCallbackIds()) {
+			dispatcher.remove(RECEIVER_SUBSCRIBER + callbackid);
 		}
+		receiverRoutes = ReceiverRoutes.EMPTY;
 	}
 
 	public void ackMessageReceipt(String receiver, String messageid) throws NotificationsDBException {
@@ -457,12 +723,7 @@ public class PushEngine implements PushSystemObserver {
 				// There must be a multithreaded scenario that allows us to get here, but still have a null message
 				if (m != null) {
 					// Are there any 'store monitoring' notifications to fire
-					for (String key : storeCallbackIdCallbackMap.keySet()) {
-						MessageChangeObserver mco = storeCallbackIdCallbackMap.get(key);
-						CTLog.getInstance().log("shell", Priority.INFO_INT, "StoreChangeNotifying (ack): " + messageid + " to: " + key);
-
-						mco.messageChanged(m, MessageChangeObserver.UPDATE_TYPE);
-					}
+					notifyStoreChange(m, MessageChangeObserver.UPDATE_TYPE, "ack");
 				}
 			}
 		} catch (NotificationsDBException e) {
@@ -493,7 +754,7 @@ public class PushEngine implements PushSystemObserver {
 		}
 	}
 
-	public void deleteMessage(String messageId) throws NotificationsDBException {
+	public void deleteMessage(final String messageId) throws NotificationsDBException {
 
 		PushMessage m = notificationsDB.getMessage(messageId);
 
@@ -505,15 +766,15 @@ public class PushEngine implements PushSystemObserver {
 			notificationsDB.removeInboxMessage(messageId, deleteFully);
 
 			// Any icons to remove
-			popupManager.clearNotification(messageId);
+			dispatchPopups(new Runnable() {
+				@Override
+				public void run() {
+					popupManager.clearNotification(messageId);
+				}
+			});
 
 			// Are there any 'store monitoring' notifications to fire
-			for (String key : storeCallbackIdCallbackMap.keySet()) {
-				MessageChangeObserver mco = storeCallbackIdCallbackMap.get(key);
-				CTLog.getInstance().log("shell", Priority.INFO_INT, "StoreChangeNotifying (del): " + messageId + " by: " + key);
-
-				mco.messageChanged(m, MessageChangeObserver.DELETE_TYPE);
-			}
+			notifyStoreChange(m, MessageChangeObserver.DELETE_TYPE, "del");
 
 		}
 	}
@@ -550,6 +811,26 @@ public class PushEngine implements PushSystemObserver {
 		return messages;
 	}
 
+	public List<PushMessage> getMessages(String channel, String subchannel, long afterDate, String afterId, int limit) throws NotificationsDBException {
+		return notificationsDB.getInboxMessages(channel, subchannel, false, afterDate, afterId, limit);
+	}
+
+	public List<PushMessage> getUnreadMessages(String channel, String subchannel, String receiver, long afterDate, String afterId, int limit) throws NotificationsDBException {
+		return notificationsDB.getUndeliveredInboxMessages(channel, subchannel, receiver, afterDate, afterId, limit);
+	}
+
+	public List<PushMessage> getMessageHeaders(String channel, String subchannel) throws NotificationsDBException {
+		return notificationsDB.getInboxHeaders(channel, subchannel, false);
+	}
+
+	public List<PushMessage> getUnreadMessageHeaders(String channel, String subchannel, String receiver) throws NotificationsDBException {
+		return notificationsDB.getUndeliveredInboxHeaders(channel, subchannel, receiver);
+	}
+
+	public PushMessage getMessage(String messageId) throws NotificationsDBException {
+		return notificationsDB.getMessage(messageId);
+	}
+
 	public void receiveMessageNotification(String receiver, String channel, String subchannel, final MessageReceiver callback ) {
 		List<PushMessage> messages = checkPendingMessages(channel, subchannel, receiver);
 
@@ -600,6 +881,15 @@ public class PushEngine implements PushSystemObserver {
 		}
 
 		// Register with Engine
+		registerStoreChangeReceiver(receiver, messageReceiver);
+	}
+
+	/**
+	 * Register for store changes without being sent the receiver's unread
+	 * messages first. Pair with {@link #getUnreadMessageIds(String)} to catch
+	 * up without loading message bodies.
+	 */
+	public void registerStoreChangeReceiver(String receiver, final MessageReceiver messageReceiver) {
 		CTLog.getInstance().log("secure", Priority.INFO_INT, "Registering to receive store notifications for: " + receiver);
 		registerStoreCallback(receiver, new MessageChangeObserver() {
 			@Override
@@ -611,6 +901,10 @@ public class PushEngine implements PushSystemObserver {
 		});
 	}
 
+	public List<String> getUnreadMessageIds(String receiver) {
+		return notificationsDB.getUndeliveredInboxIds(receiver);
+	}
+
 	public List<PushMessage> getAllMessages() {
 		return new ArrayList<PushMessage>(notificationsDB.getInboxMessages());
 	}
@@ -712,54 +1006,74 @@ public class PushEngine implements PushSystemObserver {
 	public void setStoppable(boolean b) {
 	}
 
-	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-	private ScheduledFuture<?> limitedSenderHandle;
-	private ScheduledFuture<?> senderHandle;
-
-	public void startSendSchedule() {
-		final Runnable sender = new Runnable() {
+	public void startHousekeepingSchedule() {
+		final Runnable housekeeper = new Runnable() {
 
 			@Override
 			public void run() {
-				doSendMessages();
+				// An exception would cancel all future runs
+				try {
+					doExpiryHousekeeping();
+				} catch (RuntimeException e) {
+					CTLog.getInstance().log("shell", Priority.ERROR_INT, "Expiry housekeeping failed: " + e.getMessage());
+				}
 			}
 		};
 
-		if( senderHandle != null)
-			senderHandle.cancel(false);
-		senderHandle = scheduler.scheduleAtFixedRate(sender, 0, 60, TimeUnit.SECONDS);
-	}
+		if( expiryHandle != null)
+			expiryHandle.cancel(false);
+		expiryHandle = housekeepingScheduler.scheduleWithFixedDelay(housekeeper, 1, EXPIRY_INTERVAL_MINUTES, TimeUnit.MINUTES);
 
-	public void startLimitedSendSchedule(final int attempts) {
-		final Runnable sender = new Runnable() {
-
-			int tries = attempts;
+		final Runnable collector = new Runnable() {
 
 			@Override
 			public void run() {
-
-				if( tries > 0 ) {
-					doSendMessages();
-				} else {
-					limitedSenderHandle.cancel(false);
+				try {
+					long reclaimed = notificationsDB.collectOrphanedContent(ORPHAN_MAX_FILES);
+					CTLog.getInstance().log("shell", Priority.INFO_INT, "Orphaned content collection reclaimed " + reclaimed + " bytes");
+				} catch (RuntimeException e) {
+					CTLog.getInstance().log("shell", Priority.ERROR_INT, "Orphaned content collection failed: " + e.getMessage());
 				}
-				tries--;
 			}
 		};
 
-		if( limitedSenderHandle != null)
-			limitedSenderHandle.cancel(false);
-		limitedSenderHandle = scheduler.scheduleAtFixedRate(sender, 0, 60, TimeUnit.SECONDS);
+		if( orphanHandle != null)
+			orphanHandle.cancel(false);
+		orphanHandle = housekeepingScheduler.scheduleWithFixedDelay(collector, 5, ORPHAN_INTERVAL_MINUTES, TimeUnit.MINUTES);
+	}
+
+	public void stopHousekeepingSchedule() {
+		if( expiryHandle != null )
+			expiryHandle.cancel(false);
+		if( orphanHandle != null )
+			orphanHandle.cancel(false);
+	}
+
+	/**
+	 * Let the sender run again and wake it, for when a message is queued
+	 */
+	public void startSendSchedule() {
+		outboxSignal.resume();
 	}
 
+	/**
+	 * Wake the sender when the network comes back. Failed messages are
+	 * retried on their own backoff.
+	 */
+	public void startLimitedSendSchedule() {
+		outboxSignal.resume();
+	}
+
+	/**
+	 * Hold off sending until the next start, remembering any wake-ups in
+	 * the meantime
+	 */
 	public void stopSendSchedule() {
-		if( senderHandle != null )
-			senderHandle.cancel(false);
+		outboxSignal.pause();
 	}
 
 	public void stopLimitedSendSchedule() {
-		if( limitedSenderHandle != null )
-			limitedSenderHandle.cancel(false);
+		outboxSignal.pause();
 	}
 
 	public void setResourceApi(CordovaResourceApi resourceApi) {
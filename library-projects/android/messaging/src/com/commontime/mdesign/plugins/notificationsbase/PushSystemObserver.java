@@ -2,7 +2,10 @@ package com.commontime.mdesign.plugins.notificationsbase;
 
 import com.commontime.mdesign.plugins.notificationsbase.db.PushMessage;
 
+import java.util.List;
+
 public interface PushSystemObserver {
 	public void messageReceived(PushMessage message);
+	public void messagesReceived(List<PushMessage> messages);
 	public void connectionStateChange(PushSystem.State state);
 }
@@ -0,0 +1,153 @@
+package com.commontime.mdesign.plugins.notificationsbase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable routing table from channel and subchannel to the receivers
+ * registered for them. Each subchannel's receivers are stored pre-merged with
+ * the channel's wildcard ("") receivers, so routing a message is two map
+ * lookups and no allocation. Registering or unregistering returns a new table
+ * with only the affected channel rebuilt; callers publish it by swapping a
+ * volatile reference.
+ */
+final class ReceiverRoutes {
+
+	static final String WILDCARD_SUBCHANNEL = "";
+
+	static final class Receiver {
+		final String callbackid;
+		final String channel;
+		final String subchannel;
+		final MessageReceiveObserver observer;
+
+		Receiver(String callbackid, String channel, String subchannel, MessageReceiveObserver observer) {
+			this.callbackid = callbackid;
+			this.channel = channel;
+			this.subchannel = subchannel;
+			this.observer = observer;
+		}
+	}
+
+	static final ReceiverRoutes EMPTY = new ReceiverRoutes(Collections.<String, Receiver>emptyMap(),
+			Collections.<String, List<Receiver>>emptyMap(), Collections.<String, Map<String, Receiver[]>>emptyMap());
+
+	private static final Receiver[] NONE = new Receiver[0];
+
+	private final Map<String, Receiver> mByCallbackId;
+	private final Map<String, List<Receiver>> mByChannel;
+	private final Map<String, Map<String, Receiver[]>> mRoutes;
+
+	private ReceiverRoutes(Map<String, Receiver> byCallbackId, Map<String, List<Receiver>> byChannel, Map<String, Map<String, Receiver[]>> routes) {
+		mByCallbackId = byCallbackId;
+		mByChannel = byChannel;
+		mRoutes = routes;
+	}
+
+	/**
+	 * The receivers for a message, in registration order with subchannel
+	 * receivers before wildcard ones. The array is shared and must not be
+	 * modified.
+	 */
+	Receiver[] route(String channel, String subchannel) {
+		Map<String, Receiver[]> subchannels = mRoutes.get(channel);
+		if (subchannels == null) {
+			return NONE;
+		}
+		Receiver[] receivers = subchannels.get(subchannel);
+		if (receivers == null) {
+			receivers = subchannels.get(WILDCARD_SUBCHANNEL);
+		}
+		return receivers == null ? NONE : receivers;
+	}
+
+	boolean contains(String callbackid) {
+		return mByCallbackId.containsKey(callbackid);
+	}
+
+	Set<String> getCallbackIds() {
+		return Collections.unmodifiableSet(mByCallbackId.keySet());
+	}
+
+	/**
+	 * A table with the receiver added, replacing any earlier registration
+	 * under the same callback id.
+	 */
+	ReceiverRoutes with(Receiver receiver) {
+		ReceiverRoutes routes = without(receiver.callbackid);
+
+		Map<String, Receiver> byCallbackId = new HashMap<String, Receiver>(routes.mByCallbackId);
+		byCallbackId.put(receiver.callbackid, receiver);
+
+		List<Receiver> channelReceivers = new ArrayList<Receiver>();
+		List<Receiver> existing = routes.mByChannel.get(receiver.channel);
+		if (existing != null) {
+			channelReceivers.addAll(existing);
+		}
+		channelReceivers.add(receiver);
+
+		return routes.withChannel(byCallbackId, receiver.channel, channelReceivers);
+	}
+
+	ReceiverRoutes without(String callbackid) {
+		Receiver receiver = mByCallbackId.get(callbackid);
+		if (receiver == null) {
+			return this;
+		}
+		Map<String, Receiver> byCallbackId = new HashMap<String, Receiver>(mByCallbackId);
+		byCallbackId.remove(callbackid);
+
+		List<Receiver> channelReceivers = new ArrayList<Receiver>(mByChannel.get(receiver.channel));
+		channelReceivers.remove(receiver);
+
+		return withChannel(byCallbackId, receiver.channel, channelReceivers);
+	}
+
+	private ReceiverRoutes withChannel(Map<String, Receiver> byCallbackId, String channel, List<Receiver> channelReceivers) {
+		Map<String, List<Receiver>> byChannel = new HashMap<String, List<Receiver>>(mByChannel);
+		Map<String, Map<String, Receiver[]>> routes = new HashMap<String, Map<String, Receiver[]>>(mRoutes);
+		if (channelReceivers.isEmpty()) {
+			byChannel.remove(channel);
+			routes.remove(channel);
+		} else {
+			byChannel.put(channel, Collections.unmodifiableList(channelReceivers));
+			routes.put(channel, buildChannelRoutes(channelReceivers));
+		}
+		return new ReceiverRoutes(byCallbackId, byChannel, routes);
+	}
+
+	private static Map<String, Receiver[]> buildChannelRoutes(List<Receiver> channelReceivers) {
+		Map<String, List<Receiver>> bySubchannel = new LinkedHashMap<String, List<Receiver>>();
+		List<Receiver> wildcard = new ArrayList<Receiver>();
+		for (Receiver receiver : channelReceivers) {
+			if (WILDCARD_SUBCHANNEL.equals(receiver.subchannel)) {
+				wildcard.add(receiver);
+				continue;
+			}
+			List<Receiver> receivers = bySubchannel.get(receiver.subchannel);
+			if (receivers == null) {
+				receivers = new ArrayList<Receiver>();
+				bySubchannel.put(receiver.subchannel, receivers);
+			}
+			receivers.add(receiver);
+		}
+
+		Map<String, Receiver[]> routes = new HashMap<String, Receiver[]>();
+		Receiver[] wildcardReceivers = wildcard.toArray(new Receiver[wildcard.size()]);
+		if (wildcardReceivers.length > 0) {
+			routes.put(WILDCARD_SUBCHANNEL, wildcardReceivers);
+		}
+		for (Map.Entry<String, List<Receiver>> entry : bySubchannel.entrySet()) {
+			List<Receiver> receivers = entry.getValue();
+			Receiver[] merged = receivers.toArray(new Receiver[receivers.size() + wildcardReceivers.length]);
+			System.arraycopy(wildcardReceivers, 0, merged, receivers.size(), wildcardReceivers.length);
+			routes.put(entry.getKey(), merged);
+		}
+		return routes;
+	}
+}
@@ -0,0 +1,285 @@
+package com.commontime.mdesign.plugins.notificationsbase;
+
+import com.commontime.mdesign.plugins.base.CTLog;
+import com.commontime.mdesign.plugins.notificationsbase.db.PushMessage;
+
+import org.apache.log4j.Priority;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Sends outbox messages with one lane per push system, so a slow or failing
+ * provider only holds up its own messages. Each lane runs up to
+ * maxInFlight sends at once. Bulk messages, large ones or ones carrying
+ * files, have a separate budget of maxBulkInFlight sends, so a long transfer
+ * doesn't stop small messages overtaking it.
+ * <p>
+ * Messages for the same channel and subchannel are sent one at a time, in
+ * the order they were queued, whatever their priority. Priority only decides
+ * between channels: the next send is the first message of whichever channel
+ * and subchannel has the highest priority message at its head, the earliest
+ * queued of those on a tie.
+ * <p>
+ * When a send fails, the lane drops the rest of its queue; the messages
+ * stay in the outbox and the sender is asked to queue them again later, the
+ * same as the old single loop stopping at the first failure, but without
+ * stopping the other lanes.
+ */
+class SendLanes {
+
+	interface Sender {
+		/**
+		 * Send the message and deal with the result.
+		 *
+		 * @return {@link #CARRY_ON}, or if the lane should stop sending for
+		 *         now, when its other messages should next be tried
+		 */
+		long send(PushSystemInterface system, PushMessage msg);
+
+		/**
+		 * A lane dropped messages that are still due; queue them again at
+		 * this time.
+		 */
+		void retryAt(long at);
+	}
+
+	static final long CARRY_ON = 0;
+
+	// How long a lane waits after a send fails without saying when to retry
+	static final long FAILURE_RETRY_DELAY_MS = 10 * 1000;
+
+	private static class Entry {
+		final PushSystemInterface system;
+		final PushMessage msg;
+		final boolean bulk;
+		final String orderKey;
+		// Order queued on the lane, set by Lane.add
+		long seq;
+
+		Entry(PushSystemInterface system, PushMessage msg, boolean bulk) {
+			this.system = system;
+			this.msg = msg;
+			this.bulk = bulk;
+			this.orderKey = msg.getChannel() + '\u0000' + msg.getSubchannel();
+		}
+	}
+
+	private final Executor mExecutor;
+	private final Sender mSender;
+	private final Map<String, Lane> mLanes = new HashMap<String, Lane>();
+	// Ids queued or being sent, so a new pass doesn't send them twice
+	private final Set<String> mQueuedIds = new HashSet<String>();
+	// Ids finished since the current pass read the outbox, which may still list them
+	private Set<String> mFinishedDuringPass;
+	private int mMaxInFlight = 1;
+	private int mMaxBulkInFlight = 1;
+
+	SendLanes(Executor executor, Sender sender) {
+		mExecutor = executor;
+		mSender = sender;
+	}
+
+	synchronized void setMaxInFlight(int maxInFlight, int maxBulkInFlight) {
+		mMaxInFlight = Math.max(1, maxInFlight);
+		mMaxBulkInFlight = Math.max(1, maxBulkInFlight);
+	}
+
+	/**
+	 * Call before reading the outbox for a pass, and {@link #endPass()} once
+	 * its messages are submitted.
+	 */
+	synchronized void beginPass() {
+		mFinishedDuringPass = new HashSet<String>();
+	}
+
+	synchronized void endPass() {
+		mFinishedDuringPass = null;
+	}
+
+	/**
+	 * Queue the message on the system's lane, unless it is already queued,
+	 * being sent, or was finished after this pass read the outbox.
+	 */
+	void submit(PushSystemInterface system, PushMessage msg, boolean bulk) {
+		Lane lane;
+		synchronized (this) {
+			if (mFinishedDuringPass != null && mFinishedDuringPass.contains(msg.getId())) {
+				return;
+			}
+			if (!mQueuedIds.add(msg.getId())) {
+				return;
+			}
+			lane = mLanes.get(system.getName());
+			if (lane == null) {
+				lane = new Lane(system.getName());
+				mLanes.put(system.getName(), lane);
+			}
+		}
+		lane.add(new Entry(system, msg, bulk));
+	}
+
+	private synchronized int getMaxInFlight(boolean bulk) {
+		return bulk ? mMaxBulkInFlight : mMaxInFlight;
+	}
+
+	private synchronized void forget(String id, boolean finished) {
+		mQueuedIds.remove(id);
+		if (finished && mFinishedDuringPass != null) {
+			mFinishedDuringPass.add(id);
+		}
+	}
+
+	private class Lane {
+
+		private final String mName;
+		// Queued messages by channel/subchannel, each in the order queued
+		private final Map<String, LinkedList<Entry>> mQueues = new LinkedHashMap<String, LinkedList<Entry>>();
+		// Channel/subchannel pairs with a send in progress
+		private final Set<String> mSendingKeys = new HashSet<String>();
+		private long mNextSeq;
+		private int mWorkers;
+		private int mBulkWorkers;
+
+		Lane(String name) {
+			mName = name;
+		}
+
+		void add(Entry entry) {
+			synchronized (this) {
+				entry.seq = mNextSeq++;
+				LinkedList<Entry> queue = mQueues.get(entry.orderKey);
+				if (queue == null) {
+					queue = new LinkedList<Entry>();
+					mQueues.put(entry.orderKey, queue);
+				}
+				queue.add(entry);
+			}
+			startWorkers();
+		}
+
+		/**
+		 * Start a worker for each kind of message that is at the head of a
+		 * channel's queue and has budget to spare
+		 */
+		private void startWorkers() {
+			boolean startNormal = false;
+			boolean startBulk = false;
+			synchronized (this) {
+				boolean hasNormal = false;
+				boolean hasBulk = false;
+				for (LinkedList<Entry> queue : mQueues.values()) {
+					if (queue.getFirst().bulk) {
+						hasBulk = true;
+					} else {
+						hasNormal = true;
+					}
+				}
+				if (hasNormal && mWorkers < getMaxInFlight(false)) {
+					mWorkers++;
+					startNormal = true;
+				}
+				if (hasBulk && mBulkWorkers < getMaxInFlight(true)) {
+					mBulkWorkers++;
+					startBulk = true;
+				}
+			}
+			if (startNormal) {
+				startWorker(false);
+			}
+			if (startBulk) {
+				startWorker(true);
+			}
+		}
+
+		private void startWorker(final boolean bulk) {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain(bulk);
+				}
+			});
+		}
+
+		/**
+		 * Of the channels with nothing being sent and a message of the
+		 * worker's kind at the head of their queue, the head with the highest
+		 * priority, or the earliest queued on a tie. Null lets the worker
+		 * finish.
+		 */
+		private synchronized Entry next(boolean bulk) {
+			Entry best = null;
+			for (Map.Entry<String, LinkedList<Entry>> queue : mQueues.entrySet()) {
+				if (mSendingKeys.contains(queue.getKey())) {
+					continue;
+				}
+				Entry head = queue.getValue().getFirst();
+				if (head.bulk != bulk) {
+					continue;
+				}
+				if (best == null || head.msg.getPriority() > best.msg.getPriority()
+						|| (head.msg.getPriority() == best.msg.getPriority() && head.seq < best.seq)) {
+					best = head;
+				}
+			}
+			if (best == null) {
+				if (bulk) {
+					mBulkWorkers--;
+				} else {
+					mWorkers--;
+				}
+				return null;
+			}
+			LinkedList<Entry> queue = mQueues.get(best.orderKey);
+			queue.removeFirst();
+			if (queue.isEmpty()) {
+				mQueues.remove(best.orderKey);
+			}
+			mSendingKeys.add(best.orderKey);
+			return best;
+		}
+
+		private void drain(boolean bulk) {
+			Entry entry;
+			while ((entry = next(bulk)) != null) {
+				long retryAt;
+				try {
+					retryAt = mSender.send(entry.system, entry.msg);
+				} catch (RuntimeException e) {
+					CTLog.getInstance().log("notify-send", Priority.ERROR_INT, "Sending " + entry.msg.getId() + " on " + mName + " failed: " + e.getMessage());
+					retryAt = System.currentTimeMillis() + FAILURE_RETRY_DELAY_MS;
+				}
+				finished(entry, retryAt);
+			}
+		}
+
+		private void finished(Entry entry, long retryAt) {
+			LinkedList<Entry> dropped = null;
+			synchronized (this) {
+				mSendingKeys.remove(entry.orderKey);
+				if (retryAt != CARRY_ON && !mQueues.isEmpty()) {
+					dropped = new LinkedList<Entry>();
+					for (LinkedList<Entry> queue : mQueues.values()) {
+						dropped.addAll(queue);
+					}
+					mQueues.clear();
+				}
+			}
+			forget(entry.msg.getId(), true);
+			if (dropped != null) {
+				CTLog.getInstance().log("notify-send", Priority.INFO_INT, "Send failed on " + mName + ", leaving " + dropped.size() + " messages for the next attempt");
+				for (Entry e : dropped) {
+					forget(e.msg.getId(), false);
+				}
+				mSender.retryAt(retryAt);
+			}
+			// Messages of the other kind may have been waiting on this one's channel
+			startWorkers();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package com.commontime.mdesign.plugins.notificationsbase;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The thread pool push systems run their sends and transfers on, shared so
+ * that a send doesn't cost a new thread. It has a fixed number of threads,
+ * which exit when idle, and a bounded queue. Once the queue is full a
+ * submit throws RejectedExecutionException rather than running the task on
+ * the caller, which may hold a push system's lock and would escape any
+ * timeout the caller waits with; senders treat it as a failed attempt and
+ * try again later.
+ */
+public class TransportExecutor extends ThreadPoolExecutor {
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private final AtomicLong mRejected;
+
+	public TransportExecutor(final String name, int threads, int queueCapacity) {
+		this(name, threads, queueCapacity, new AtomicLong());
+	}
+
+	private TransportExecutor(final String name, int threads, int queueCapacity, final AtomicLong rejected) {
+		super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, name + "-" + count.incrementAndGet());
+			}
+		}, new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				rejected.incrementAndGet();
+				throw new RejectedExecutionException(executor.isShutdown() ? "Transport executor shut down" : "Transport queue full");
+			}
+		});
+		mRejected = rejected;
+		allowCoreThreadTimeOut(true);
+	}
+
+	public int getQueueDepth() {
+		return getQueue().size();
+	}
+
+	/**
+	 * The number of tasks turned away because the queue was full
+	 */
+	public long getRejectedCount() {
+		return mRejected.get();
+	}
+
+	public String getStats() {
+		return "active " + getActiveCount() + "/" + getPoolSize() + " threads (peak " + getLargestPoolSize() + "), queued " + getQueueDepth()
+				+ ", completed " + getCompletedTaskCount() + ", rejected " + getRejectedCount();
+	}
+}
@@ -0,0 +1,53 @@
+package com.commontime.mdesign.plugins.notificationsbase.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Where ContentStore keeps the bytes of large content. Keys are content
+ * hashes, so a key is only ever written with the same data.
+ */
+interface ContentBackend {
+
+	boolean contains(String key);
+
+	/**
+	 * Store the data under the key. It is safe to put a key that is already
+	 * stored, or that another thread is putting at the same time, as the data
+	 * is the same; readers only ever see the key once it is complete.
+	 * <p>
+	 * Only returns once the data has been synced to disk, as the caller
+	 * stores a reference to it straight afterwards.
+	 */
+	void put(String key, byte[] data) throws IOException;
+
+	/**
+	 * @throws java.io.FileNotFoundException if the key isn't stored
+	 */
+	ByteBuffer get(String key) throws IOException;
+
+	/**
+	 * Mark the key as recently written, so the orphan sweep leaves it alone
+	 */
+	void touch(String key);
+
+	/**
+	 * @return the number of bytes freed on disk
+	 */
+	long remove(String key);
+
+	/**
+	 * Every stored key, mapped to when it was last written
+	 */
+	Map<String, Long> list();
+
+	/**
+	 * Reclaim space left behind by removed keys, where the layout needs it.
+	 *
+	 * @return the number of bytes freed on disk
+	 */
+	long compact();
+
+	void clear() throws IOException;
+}
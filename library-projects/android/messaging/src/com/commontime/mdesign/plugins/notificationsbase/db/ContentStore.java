@@ -1,78 +1,409 @@
 package com.commontime.mdesign.plugins.notificationsbase.db;
 
 import android.content.Context;
+import android.util.Base64;
 
 import com.commontime.mdesign.plugins.base.CTLog;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Priority;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
+/**
+ * Stores message content too large for the database column under the
+ * SHA-256 of the content, so identical bodies are written once. Each entry
+ * is reference counted by the rows that point at it, and only deleted when
+ * the last of them goes.
+ * <p>
+ * Entries live either in a file each or, optionally, in an append-only
+ * segment log. Content written as files by earlier versions stays readable
+ * from the segment log store.
+ */
 public class ContentStore {
 
 	private static String DIR_ROOT = "notificationsdb";
+	private static String SEGMENT_DIR_SUFFIX = "-log";
 	
 	private static String FILE_CHARSET = "UTF-8";
-	private static String FILE_PREFIX = "content";
 	private static String FILE_SUFFIX = ".json";
 	
-	private static String CONTENT_REF_PREFIX = "#contentref:";
+	static final String CONTENT_REF_PREFIX = "#contentref:";
 	private static final int CONTENT_MIN_FILE_SIZE = 4096;
 
-	private final File mDir;
+	// Compressed values carry a format version so the encoding can change
+	// later; anything without a header is plain UTF-8 from older versions.
+	private static final int COMPRESSED_VERSION = 1;
+	private static final String INLINE_COMPRESSED_PREFIX = "#zcontent:";
+	private static final byte[] FILE_MAGIC = { 'C', 'T', 'Z' };
+	private static final int INLINE_MIN_COMPRESS_SIZE = 256;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
 	private final String mDirName;
+	private final ContentBackend mFiles;
+	private final ContentBackend mBackend;
+
+	// Content ref -> number of rows using it, guarded by its own monitor
+	private final Map<String, Integer> mRefCounts = new HashMap<String, Integer>();
 
 	public ContentStore(Context context, String dirName) {
+		this(context, dirName, false);
+	}
+
+	public ContentStore(Context context, String dirName, boolean segmentLog) {
 		File root = context.getDir(DIR_ROOT, Context.MODE_PRIVATE);
-		mDir = FileUtils.getFile(root, dirName);
 		mDirName = dirName;
+		mFiles = new FileContentBackend(FileUtils.getFile(root, dirName));
+		mBackend = segmentLog ? new SegmentLogBackend(FileUtils.getFile(root, dirName + SEGMENT_DIR_SUFFIX)) : mFiles;
+	}
+
+	private List<ContentBackend> getBackends() {
+		List<ContentBackend> backends = new ArrayList<ContentBackend>();
+		backends.add(mBackend);
+		if (mFiles != mBackend) {
+			backends.add(mFiles);
+		}
+		return backends;
+	}
+
+	/**
+	 * The backend holding the key, preferring the configured one
+	 */
+	private ContentBackend getBackend(String key) {
+		if (mFiles != mBackend && !mBackend.contains(key) && mFiles.contains(key)) {
+			return mFiles;
+		}
+		return mBackend;
 	}
 	
+	/**
+	 * Seed the reference counts from the refs currently stored in the
+	 * database, mapped to the number of rows holding each one.
+	 */
+	void loadReferences(Map<String, Integer> refCounts) {
+		synchronized (mRefCounts) {
+			mRefCounts.clear();
+			mRefCounts.putAll(refCounts);
+		}
+	}
+
+	/**
+	 * Returns the value to store in the content column. Every ref returned
+	 * holds a reference that must be released with {@link #deleteContent}
+	 * if the row isn't inserted.
+	 */
 	public String save(String content) throws NotificationsDBException {
 		if (content.length() < CONTENT_MIN_FILE_SIZE) {
-			return content;
+			return saveInline(content);
 		}
-		try {			
-			FileUtils.forceMkdir(mDir);
-			File file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, mDir);
-			FileUtils.writeStringToFile(file, content, FILE_CHARSET);
-			String contentRef = CONTENT_REF_PREFIX + file.getName();
+		byte[] bytes;
+		try {
+			bytes = content.getBytes(FILE_CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			throw new NotificationsDBException("Error saving message content to disk (" + mDirName + ")");
+		}
+		String key = sha256(bytes) + FILE_SUFFIX;
+		String contentRef = CONTENT_REF_PREFIX + key;
+
+		// Take the reference first, which keeps delete and the sweep away from
+		// the key while it is compressed and written without holding the lock
+		boolean stored;
+		synchronized (mRefCounts) {
+			Integer count = mRefCounts.get(contentRef);
+			mRefCounts.put(contentRef, count == null ? 1 : count + 1);
+			ContentBackend backend = getBackend(key);
+			stored = backend.contains(key);
+			if (stored) {
+				// Keep the sweep from treating it as an orphan before the new row lands
+				backend.touch(key);
+			}
+		}
+		if (stored) {
+			return contentRef;
+		}
+
+		try {
+			// Another thread saving the same content may be writing it too; backends allow that
+			mBackend.put(key, encode(bytes));
 			return contentRef;
 		} catch (IOException e) {
 			e.printStackTrace();
+			deleteContent(contentRef);
 			throw new NotificationsDBException("Error saving message content to disk (" + mDirName + ")");
 		}
 	}
 	
+	private static byte[] encode(byte[] bytes) {
+		byte[] compressed = deflate(bytes);
+		byte[] data = new byte[FILE_MAGIC.length + 1 + compressed.length];
+		System.arraycopy(FILE_MAGIC, 0, data, 0, FILE_MAGIC.length);
+		data[FILE_MAGIC.length] = (byte) COMPRESSED_VERSION;
+		System.arraycopy(compressed, 0, data, FILE_MAGIC.length + 1, compressed.length);
+		return data;
+	}
+
+	private static String sha256(byte[] bytes) throws NotificationsDBException {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			char[] hex = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+				hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0x0f];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			throw new NotificationsDBException("SHA-256 not available");
+		}
+	}
+
+	/**
+	 * Small content stays in the database column, compressed and base64
+	 * encoded when that comes out shorter than the original.
+	 */
+	private String saveInline(String content) throws NotificationsDBException {
+		if (content.length() < INLINE_MIN_COMPRESS_SIZE) {
+			return content;
+		}
+		try {
+			String encoded = INLINE_COMPRESSED_PREFIX + COMPRESSED_VERSION + ":" + Base64.encodeToString(deflate(content.getBytes(FILE_CHARSET)), Base64.NO_WRAP);
+			return encoded.length() < content.length() ? encoded : content;
+		} catch (UnsupportedEncodingException e) {
+			throw new NotificationsDBException("Error compressing message content (" + mDirName + ")");
+		}
+	}
+
+	/**
+	 * The content as a String. Stored entries are read through
+	 * {@link #openContent}, so the body is decoded straight from the
+	 * backend's buffer without first being copied out whole.
+	 */
 	public String load(String content) throws NotificationsDBException {
+		if (content.startsWith(INLINE_COMPRESSED_PREFIX)) {
+			return loadInline(content);
+		}
 		if (!content.startsWith(CONTENT_REF_PREFIX)) {
 			return content;
 		}
+		InputStream in = openContent(content);
 		try {
-			String fileName = content.substring(CONTENT_REF_PREFIX.length());
-			File file = FileUtils.getFile(mDir, fileName);
-			return FileUtils.readFileToString(file, FILE_CHARSET);		
+			return IOUtils.toString(in, FILE_CHARSET);
+		} catch (ZipException e) {
+			e.printStackTrace();
+			throw new NotificationsDBException("Corrupt message content on disk (" + mDirName + ")");
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new NotificationsDBException("Error loading message content from disk (" + mDirName + ")");
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Stream the UTF-8 content without building it as a String. Large
+	 * entries are memory mapped and inflated as they are read, so a
+	 * consumer that copies the body somewhere or parses it incrementally
+	 * never holds the whole payload on the heap.
+	 */
+	public InputStream openContent(String content) throws NotificationsDBException {
+		if (content.startsWith(INLINE_COMPRESSED_PREFIX)) {
+			return new InflaterInputStream(new ByteArrayInputStream(decodeInline(content)));
+		}
+		try {
+			if (!content.startsWith(CONTENT_REF_PREFIX)) {
+				return new ByteArrayInputStream(content.getBytes(FILE_CHARSET));
+			}
+			String key = content.substring(CONTENT_REF_PREFIX.length());
+			ByteBuffer data = getBackend(key).get(key);
+			if (!hasFileHeader(data)) {
+				return new ByteBufferInputStream(data);
+			}
+			int version = data.get(FILE_MAGIC.length);
+			if (version != COMPRESSED_VERSION) {
+				throw new NotificationsDBException("Unknown message content format " + version + " (" + mDirName + ")");
+			}
+			data.position(FILE_MAGIC.length + 1);
+			return new InflaterInputStream(new ByteBufferInputStream(data));
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new NotificationsDBException("Error opening message content on disk (" + mDirName + ")");
+		}
+	}
+
+	private byte[] decodeInline(String content) throws NotificationsDBException {
+		int separator = content.indexOf(':', INLINE_COMPRESSED_PREFIX.length());
+		if (separator == -1 || !String.valueOf(COMPRESSED_VERSION).equals(content.substring(INLINE_COMPRESSED_PREFIX.length(), separator))) {
+			throw new NotificationsDBException("Unknown message content format (" + mDirName + ")");
+		}
+		try {
+			return Base64.decode(content.substring(separator + 1), Base64.NO_WRAP);
+		} catch (IllegalArgumentException e) {
+			throw new NotificationsDBException("Corrupt message content (" + mDirName + ")");
+		}
+	}
+
+	private String loadInline(String content) throws NotificationsDBException {
+		byte[] compressed = decodeInline(content);
+		try {
+			return new String(inflate(compressed, 0), FILE_CHARSET);
+		} catch (DataFormatException e) {
+			throw new NotificationsDBException("Corrupt message content (" + mDirName + ")");
+		} catch (UnsupportedEncodingException e) {
+			throw new NotificationsDBException("Error loading message content (" + mDirName + ")");
 		}
 	}
 
-	public void deleteContent(String content) {
+	private static boolean hasFileHeader(ByteBuffer data) {
+		if (data.limit() <= FILE_MAGIC.length) {
+			return false;
+		}
+		for (int i = 0; i < FILE_MAGIC.length; i++) {
+			if (data.get(i) != FILE_MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] deflate(byte[] input) {
+		// Favour speed, JSON still compresses well at the lowest level
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(input);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 64);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] input, int offset) throws DataFormatException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(input, offset, input.length - offset);
+			ByteArrayOutputStream out = new ByteArrayOutputStream((input.length - offset) * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new DataFormatException("Truncated compressed content");
+				}
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Release one reference to the content, deleting it once no rows use it
+	 * any more.
+	 *
+	 * @return the number of bytes freed on disk
+	 */
+	public long deleteContent(String content) {
 		if (!content.startsWith(CONTENT_REF_PREFIX)) {
-			return;
+			return 0;
+		}
+		String key = content.substring(CONTENT_REF_PREFIX.length());
+		synchronized (mRefCounts) {
+			Integer count = mRefCounts.remove(content);
+			if (count != null && count > 1) {
+				mRefCounts.put(content, count - 1);
+				return 0;
+			}
+			long reclaimed = 0;
+			for (ContentBackend backend : getBackends()) {
+				if (backend.contains(key)) {
+					reclaimed += backend.remove(key);
+				}
+			}
+			return reclaimed;
 		}
-		String fileName = content.substring(CONTENT_REF_PREFIX.length());
-		File file = FileUtils.getFile(mDir, fileName);
-		file.delete();
 	}
 	
+	/**
+	 * Sweep phase of the orphan collector. Deletes up to maxFiles entries
+	 * whose reference isn't in the referenced set. Entries written in the
+	 * last minAge ms, or still holding a reference, are skipped, as their
+	 * row may not be inserted yet.
+	 *
+	 * @return the number of bytes freed on disk
+	 */
+	public long sweep(Set<String> referenced, long minAge, int maxFiles) {
+		long cutoff = System.currentTimeMillis() - minAge;
+		long reclaimed = 0;
+		int deleted = 0;
+		for (ContentBackend backend : getBackends()) {
+			for (Map.Entry<String, Long> entry : backend.list().entrySet()) {
+				if (deleted >= maxFiles) {
+					break;
+				}
+				String contentRef = CONTENT_REF_PREFIX + entry.getKey();
+				if (entry.getValue() > cutoff || referenced.contains(contentRef)) {
+					continue;
+				}
+				synchronized (mRefCounts) {
+					if (mRefCounts.containsKey(contentRef)) {
+						continue;
+					}
+					reclaimed += backend.remove(entry.getKey());
+					deleted++;
+				}
+			}
+		}
+		if (deleted > 0) {
+			CTLog.getInstance().log("shell", Priority.INFO_INT, "Deleted " + deleted + " orphaned content files (" + mDirName + ")");
+		}
+		return reclaimed;
+	}
+
+	/**
+	 * Reclaim space left by deleted content, for backends that don't free
+	 * it straight away.
+	 *
+	 * @return the number of bytes freed on disk
+	 */
+	public long compact() {
+		long reclaimed = mBackend.compact();
+		if (reclaimed > 0) {
+			CTLog.getInstance().log("shell", Priority.INFO_INT, "Compacted message content, reclaimed " + reclaimed + " bytes (" + mDirName + ")");
+		}
+		return reclaimed;
+	}
+
 	public void clear()  {
+		synchronized (mRefCounts) {
+			mRefCounts.clear();
+		}
 		try {
-			if (mDir.exists()) {
-				FileUtils.cleanDirectory(mDir);
+			for (ContentBackend backend : getBackends()) {
+				backend.clear();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -0,0 +1,128 @@
+package com.commontime.mdesign.plugins.notificationsbase.db;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One file per key in a single directory.
+ */
+class FileContentBackend implements ContentBackend {
+
+	// Below this a plain read is cheaper than setting up a mapping
+	static final int MAP_MIN_SIZE = 64 * 1024;
+
+	private static final String TEMP_PREFIX = "tmp";
+	private static final String TEMP_SUFFIX = ".json";
+
+	private final File mDir;
+
+	FileContentBackend(File dir) {
+		mDir = dir;
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return FileUtils.getFile(mDir, key).exists();
+	}
+
+	/**
+	 * Written under a temporary name, synced and renamed into place, so a
+	 * file with the key's name is always complete.
+	 */
+	@Override
+	public void put(String key, byte[] data) throws IOException {
+		FileUtils.forceMkdir(mDir);
+		File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, mDir);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(data);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			File file = FileUtils.getFile(mDir, key);
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to rename " + temp.getName() + " to " + file.getName());
+			}
+		} finally {
+			if (temp.exists()) {
+				temp.delete();
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer get(String key) throws IOException {
+		File file = FileUtils.getFile(mDir, key);
+		if (!file.exists()) {
+			throw new FileNotFoundException(file.getPath());
+		}
+		return mapFile(file);
+	}
+
+	/**
+	 * A read-only view of the file. The mapping stays valid after the
+	 * channel is closed, and after the file is deleted.
+	 */
+	static ByteBuffer mapFile(File file) throws IOException {
+		if (file.length() < MAP_MIN_SIZE) {
+			return ByteBuffer.wrap(FileUtils.readFileToByteArray(file));
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public void touch(String key) {
+		FileUtils.getFile(mDir, key).setLastModified(System.currentTimeMillis());
+	}
+
+	@Override
+	public long remove(String key) {
+		File file = FileUtils.getFile(mDir, key);
+		long length = file.length();
+		return file.delete() ? length : 0;
+	}
+
+	@Override
+	public Map<String, Long> list() {
+		Map<String, Long> keys = new HashMap<String, Long>();
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile()) {
+					keys.put(file.getName(), file.lastModified());
+				}
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	public long compact() {
+		// Deleting a file already gives its space back
+		return 0;
+	}
+
+	@Override
+	public void clear() throws IOException {
+		if (mDir.exists()) {
+			FileUtils.cleanDirectory(mDir);
+		}
+	}
+}
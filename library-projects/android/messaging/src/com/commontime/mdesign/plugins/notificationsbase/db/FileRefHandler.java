@@ -2,6 +2,7 @@ package com.commontime.mdesign.plugins.notificationsbase.db;
 
 import android.content.Context;
 import android.util.Base64;
+import android.util.JsonReader;
 
 import com.commontime.mdesign.plugins.base.CTLog;
 import com.commontime.mdesign.plugins.base.Files;
@@ -14,6 +15,10 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.UUID;
 
@@ -28,6 +33,9 @@ public class FileRefHandler implements FileRefHandlerInterface {
 	private static final String PREFIX_FILE_DATA = "#file:";
 
 	private static final String FILE_SUFFIX= ".bin";
+	// Whole lines of base64 output, 57 bytes each
+	private static final int BASE64_CHUNK_SIZE = 57 * 1024;
+	private static final Charset CONTENT_CHARSET = Charset.forName("UTF-8");
 	
 	private final File mRootDir;
 	private final File mSendingDir;
@@ -40,6 +48,9 @@ public class FileRefHandler implements FileRefHandlerInterface {
 	}
 
 	public String convertSendingFileRefs(String content) throws JSONException, IOException {
+		if (!mayContain(content, PREFIX_FILE_REF)) {
+			return content;
+		}
 		JSONObject jsonObject = new JSONObject(content);
 		ConvertJSONObject(jsonObject, new Converter() {
 			@Override
@@ -65,6 +76,9 @@ public class FileRefHandler implements FileRefHandlerInterface {
 	
 	@Override
 	public String resolveFileRefs(PushMessage msg) throws JSONException, IOException {
+		if (!mayContain(msg.getContent(), PREFIX_FILE_REF)) {
+			return msg.getContent();
+		}
 		JSONObject jsonObject = new JSONObject(msg.getContent());
 		ConvertJSONObject(jsonObject, new Converter() {
 			@Override
@@ -83,6 +97,9 @@ public class FileRefHandler implements FileRefHandlerInterface {
 	
 	@Override
 	public String createFileRefs(String content) throws JSONException, IOException {
+		if (!mayContain(content, PREFIX_FILE_DATA)) {
+			return content;
+		}
 		JSONObject jsonObject = new JSONObject(content);
 		ConvertJSONObject(jsonObject, new Converter() {
 			@Override
@@ -99,7 +116,14 @@ public class FileRefHandler implements FileRefHandlerInterface {
 		return jsonObject.toString();
 	}
 	
-	public void deleteFiles(String content) {
+	/**
+	 * @return the number of bytes freed on disk
+	 */
+	public long deleteFiles(String content) {
+		final long[] reclaimed = { 0 };
+		if (!mayContain(content, PREFIX_FILE_REF)) {
+			return 0;
+		}
 		try {
 			JSONObject jsonObject = new JSONObject(content);
 			ConvertJSONObject(jsonObject, new Converter() {
@@ -110,7 +134,7 @@ public class FileRefHandler implements FileRefHandlerInterface {
 				@Override
 				public String convert(String value) throws IOException{
 					String path = value.substring(PREFIX_FILE_REF.length());
-					deleteFileData(path);
+					reclaimed[0] += deleteFileData(path);
 					return value;
 				}				
 			});
@@ -119,9 +143,75 @@ public class FileRefHandler implements FileRefHandlerInterface {
 			e.printStackTrace();
 			CTLog.getInstance().log("shell", Priority.WARN_INT, "FileRef content files may not have been deleted.");
 		}
+		return reclaimed[0];
 	}
 	
 
+	/**
+	 * As {@link #deleteFiles(String)}, reading the content as it is parsed
+	 * rather than loading it whole, for example from
+	 * {@link ContentStore#openContent}. The stream is closed.
+	 *
+	 * @return the number of bytes freed on disk
+	 */
+	public long deleteFiles(InputStream content) {
+		JsonReader reader = new JsonReader(new InputStreamReader(content, CONTENT_CHARSET));
+		// Content isn't always a JSON object
+		reader.setLenient(true);
+		try {
+			return deleteFiles(reader);
+		} catch (Exception e) {
+			e.printStackTrace();
+			CTLog.getInstance().log("shell", Priority.WARN_INT, "FileRef content files may not have been deleted.");
+			return 0;
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// Nothing more to read
+			}
+		}
+	}
+
+	private long deleteFiles(JsonReader reader) throws IOException {
+		long reclaimed = 0;
+		switch (reader.peek()) {
+		case BEGIN_OBJECT:
+			reader.beginObject();
+			while (reader.hasNext()) {
+				reader.nextName();
+				reclaimed += deleteFiles(reader);
+			}
+			reader.endObject();
+			break;
+		case BEGIN_ARRAY:
+			reader.beginArray();
+			while (reader.hasNext()) {
+				reclaimed += deleteFiles(reader);
+			}
+			reader.endArray();
+			break;
+		case STRING:
+			String value = reader.nextString();
+			if (value.startsWith(PREFIX_FILE_REF)) {
+				reclaimed += deleteFileData(value.substring(PREFIX_FILE_REF.length()));
+			}
+			break;
+		default:
+			reader.skipValue();
+		}
+		return reclaimed;
+	}
+
+	/**
+	 * Whether a string value in the JSON text could start with the prefix.
+	 * Neither prefix has characters JSON escapes, so when this is false there
+	 * is nothing to convert and the content needn't be parsed.
+	 */
+	static boolean mayContain(String content, String prefix) {
+		return content != null && content.indexOf("\"" + prefix) >= 0;
+	}
+
 	public void clearSendingFiles() {
 		try {
 			FileUtils.cleanDirectory(mSendingDir);
@@ -188,10 +278,35 @@ public class FileRefHandler implements FileRefHandlerInterface {
 		return filePath.substring(rootPath.length());
 	}
 	
+	/**
+	 * A read-only view of the file behind a {@code #fileref:} value, memory
+	 * mapped when it is large, for consumers that can stream the attachment
+	 * rather than hold it in a byte array.
+	 */
+	public ByteBuffer openFileData(String fileRef) throws IOException {
+		String path = fileRef.startsWith(PREFIX_FILE_REF) ? fileRef.substring(PREFIX_FILE_REF.length()) : fileRef;
+		int hashIndex = path.indexOf("#");
+		if (hashIndex != -1) {
+			path = path.substring(0, hashIndex);
+		}
+		return FileContentBackend.mapFile(new File(mRootDir, path));
+	}
+
+	/**
+	 * Encodes the attachment from {@link #openFileData} a chunk at a time. A
+	 * chunk is a whole number of 57 byte lines, so the output is the same as
+	 * encoding the file in one go.
+	 */
 	private String readFileData(String path) throws IOException {
-		File file = new File(mRootDir, path);
-		byte[] bytes = FileUtils.readFileToByteArray(file);
-		return Base64.encodeToString(bytes, Base64.DEFAULT);
+		ByteBuffer data = openFileData(path);
+		StringBuilder encoded = new StringBuilder(data.remaining() / 57 * 77 + 78);
+		byte[] chunk = new byte[Math.min(data.remaining(), BASE64_CHUNK_SIZE)];
+		while (data.hasRemaining()) {
+			int length = Math.min(chunk.length, data.remaining());
+			data.get(chunk, 0, length);
+			encoded.append(Base64.encodeToString(chunk, 0, length, Base64.DEFAULT));
+		}
+		return encoded.toString();
 	}
 
 	private String writeFileData(String fileData) throws IOException {
@@ -205,8 +320,9 @@ public class FileRefHandler implements FileRefHandlerInterface {
 		return filePath.substring(rootPath.length());
 	}
 	
-	private void deleteFileData(String path) throws IOException {
+	private long deleteFileData(String path) throws IOException {
 		File file = new File(mRootDir, path);
-		file.delete();
+		long length = file.length();
+		return file.delete() ? length : 0;
 	}
 }
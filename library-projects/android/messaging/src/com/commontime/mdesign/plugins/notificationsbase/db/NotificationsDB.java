@@ -6,6 +6,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 
 import com.commontime.mdesign.plugins.base.CTLog;
@@ -15,15 +16,23 @@ import org.apache.log4j.Priority;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 	
 	Context context;
 
 	private static final String DATABASE_NAME = "notifications";
-	private static final int DATABASE_VERSION = 15;
+	private static final int DATABASE_VERSION = 19;
 
 	private static final String TABLE_CHANNELS = "channels";
 	private static final String TABLE_INBOX = "inbox";
@@ -55,16 +64,55 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 	private static final String KEY_OUTBOX_NOTIFICATION = "notification";
 	private static final String KEY_OUTBOX_SIGNATURE = "signature";
 	private static final String KEY_OUTBOX_PROVIDER = "provider";
+	private static final String KEY_OUTBOX_ATTEMPTS = "attempts";
+	private static final String KEY_OUTBOX_NEXT_ATTEMPT = "next_attempt_at";
+	private static final String KEY_OUTBOX_PRIORITY = "priority";
 	
+	private static final String INDEX_INBOX_CHANNEL = "inbox_channel_idx";
+	private static final String INDEX_INBOX_EXPIRY = "inbox_expiry_idx";
+	private static final String INDEX_DELIVERY_RECEIVER = "delivery_receiver_idx";
+	private static final String INDEX_OUTBOX_NEXT_ATTEMPT = "outbox_next_attempt_idx";
+
+	// Stay well below SQLITE_MAX_VARIABLE_NUMBER (999)
+	private static final int MAX_QUERY_ARGS = 500;
+
+	private static final int RECENT_ID_CACHE_SIZE = 2000;
+
+	private static final int PURGE_BATCH_SIZE = 100;
+
+	// Content is saved before its row is queued for insert, so give new files time to be referenced
+	private static final long ORPHAN_MIN_AGE_MS = 60 * 60 * 1000;
+
+	private static final String EMPTY_CONTENT = "{}";
+
 	private static final String CONTENT_DIR_INBOX = "inbox";
 	private static final String CONTENT_DIR_OUTBOX = "outbox";
 
+	// Set in the "extra" preferences to keep large content in segment logs rather than a file per message
+	private static final String PREFS_EXTRA = "extra";
+	private static final String PREF_CONTENT_SEGMENT_LOG = "contentSegmentLog";
+
 	private SQLiteDatabase dbWrite;
 	private SQLiteDatabase dbRead;
 	
 	private FileRefHandler mFileRefHandler;
 	private ContentStore mInboxContentStore;
 	private ContentStore mOutboxContentStore;
+	private RecentIdCache mRecentInboxIds;
+
+	private WriteQueue mWriter;
+
+	// Precompiled statements for the per-message paths. The write statements
+	// are only ever executed on the writer thread; mInboxExists is shared by
+	// readers and guarded by its own monitor.
+	private SQLiteStatement mInsertInbox;
+	private SQLiteStatement mInsertInboxIfAbsent;
+	private SQLiteStatement mDeleteInbox;
+	private SQLiteStatement mInsertDelivery;
+	private SQLiteStatement mDeleteDelivery;
+	private SQLiteStatement mInsertOutbox;
+	private SQLiteStatement mDeleteOutbox;
+	private SQLiteStatement mInboxExists;
 
 	public static void validateChannel(String channel) throws NotificationsDBException {
 		Boolean valid = false;
@@ -108,10 +156,83 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 		this.context = context;
 		dbWrite = this.getWritableDatabase();
+		// With WAL, reads run on their own pooled connections alongside the writer,
+		// and every write goes through the single writer thread
+		dbWrite.enableWriteAheadLogging();
 		dbRead = this.getReadableDatabase();
+		compileStatements();
+		mWriter = new WriteQueue(dbWrite);
 		mFileRefHandler = new FileRefHandler(context);
-		mInboxContentStore = new ContentStore(context, CONTENT_DIR_INBOX);
-		mOutboxContentStore = new ContentStore(context, CONTENT_DIR_OUTBOX);
+		boolean segmentLog = context.getSharedPreferences(PREFS_EXTRA, Context.MODE_PRIVATE).getBoolean(PREF_CONTENT_SEGMENT_LOG, false);
+		mInboxContentStore = new ContentStore(context, CONTENT_DIR_INBOX, segmentLog);
+		mOutboxContentStore = new ContentStore(context, CONTENT_DIR_OUTBOX, segmentLog);
+		mInboxContentStore.loadReferences(getContentRefCounts(TABLE_INBOX, KEY_INBOX_CONTENT));
+		mOutboxContentStore.loadReferences(getContentRefCounts(TABLE_OUTBOX, KEY_OUTBOX_CONTENT));
+		mRecentInboxIds = new RecentIdCache(RECENT_ID_CACHE_SIZE);
+		loadRecentInboxIds();
+	}
+
+	private void compileStatements() {
+		String inboxColumns = "(" + KEY_INBOX_ID + "," + KEY_INBOX_DATE + "," + KEY_INBOX_CHANNEL + "," + KEY_INBOX_SUBCHANNEL + "," + KEY_INBOX_CONTENT + ","
+				+ KEY_INBOX_EXPIRY + "," + KEY_INBOX_NOTIFICATION + "," + KEY_INBOX_DELETED + "," + KEY_INBOX_PROVIDER + ") VALUES (?,?,?,?,?,?,?,0,?)";
+		mInsertInbox = dbWrite.compileStatement("INSERT INTO " + TABLE_INBOX + inboxColumns);
+		mInsertInboxIfAbsent = dbWrite.compileStatement("INSERT OR IGNORE INTO " + TABLE_INBOX + inboxColumns);
+		mDeleteInbox = dbWrite.compileStatement("DELETE FROM " + TABLE_INBOX + " WHERE " + KEY_INBOX_ID + " = ?");
+
+		mInsertDelivery = dbWrite.compileStatement("INSERT OR IGNORE INTO " + TABLE_DELIVERY + "(" + KEY_DELIVERY_INBOX_ID + "," + KEY_DELIVERY_RECEIVER
+				+ ") VALUES (?,?)");
+		mDeleteDelivery = dbWrite.compileStatement("DELETE FROM " + TABLE_DELIVERY + " WHERE " + KEY_DELIVERY_INBOX_ID + " = ?");
+
+		mInsertOutbox = dbWrite.compileStatement("INSERT INTO " + TABLE_OUTBOX + "(" + KEY_OUTBOX_ID + "," + KEY_OUTBOX_DATE + "," + KEY_OUTBOX_CHANNEL + ","
+				+ KEY_OUTBOX_SUBCHANNEL + "," + KEY_OUTBOX_CONTENT + "," + KEY_OUTBOX_EXPIRY + "," + KEY_OUTBOX_NOTIFICATION + "," + KEY_OUTBOX_PROVIDER
+				+ "," + KEY_OUTBOX_PRIORITY + ") VALUES (?,?,?,?,?,?,?,?,?)");
+		mDeleteOutbox = dbWrite.compileStatement("DELETE FROM " + TABLE_OUTBOX + " WHERE " + KEY_OUTBOX_ID + " = ?");
+
+		mInboxExists = dbRead.compileStatement("SELECT COUNT(*) FROM " + TABLE_INBOX + " WHERE " + KEY_INBOX_ID + " = ?");
+	}
+
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if (value == null) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
+		}
+	}
+
+	private static void bindInbox(SQLiteStatement statement, PushMessage message, String content) {
+		statement.clearBindings();
+		bindString(statement, 1, message.getId());
+		statement.bindLong(2, message.getDate());
+		bindString(statement, 3, message.getChannel());
+		bindString(statement, 4, message.getSubchannel());
+		bindString(statement, 5, content);
+		statement.bindLong(6, message.getExpiry());
+		bindString(statement, 7, message.getNotification());
+		bindString(statement, 8, message.getProvider());
+	}
+
+	private void loadRecentInboxIds() {
+		String sql = "SELECT " + KEY_INBOX_ID + " FROM " + TABLE_INBOX + " ORDER BY " + KEY_INBOX_DATE + " DESC LIMIT " + mRecentInboxIds.getCapacity();
+		List<String> ids = new ArrayList<String>();
+
+		Cursor cursor = null;
+		try {
+			cursor = dbRead.rawQuery(sql, new String[0]);
+			if (cursor.moveToFirst()) {
+				do {
+					ids.add(cursor.getString(0));
+				} while (cursor.moveToNext());
+			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
+			}
+		}
+
+		// Oldest first, so the newest ids are the last to be evicted
+		Collections.reverse(ids);
+		mRecentInboxIds.clear();
+		mRecentInboxIds.addAll(ids);
 	}
 
 	@Override
@@ -129,43 +250,155 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 
 		String CREATE_OUTBOX_TABLE = "CREATE TABLE " + TABLE_OUTBOX + "(" + KEY_OUTBOX_ID + " TEXT PRIMARY KEY," + KEY_OUTBOX_DATE + " INTEGER,"
 				+ KEY_OUTBOX_CHANNEL + " TEXT," + KEY_OUTBOX_SUBCHANNEL + " TEXT," + KEY_OUTBOX_CONTENT + " TEXT," + KEY_OUTBOX_EXPIRY + " INTEGER,"
-				+ KEY_OUTBOX_NOTIFICATION + " TEXT," + KEY_OUTBOX_SIGNATURE + " TEXT," + KEY_OUTBOX_PROVIDER + " TEXT" + ")";
+				+ KEY_OUTBOX_NOTIFICATION + " TEXT," + KEY_OUTBOX_SIGNATURE + " TEXT," + KEY_OUTBOX_PROVIDER + " TEXT,"
+				+ KEY_OUTBOX_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0," + KEY_OUTBOX_NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0,"
+				+ KEY_OUTBOX_PRIORITY + " INTEGER NOT NULL DEFAULT 0" + ")";
 		db.execSQL(CREATE_OUTBOX_TABLE);
+
+		createIndexes(db);
+		createOutboxIndexes(db);
+	}
+
+	// Separate from createIndexes, which older upgrade steps run before the outbox retry columns exist
+	private void createOutboxIndexes(SQLiteDatabase db) {
+		String CREATE_OUTBOX_NEXT_ATTEMPT_INDEX = "CREATE INDEX IF NOT EXISTS " + INDEX_OUTBOX_NEXT_ATTEMPT + " ON " + TABLE_OUTBOX + "("
+				+ KEY_OUTBOX_NEXT_ATTEMPT + ")";
+		db.execSQL(CREATE_OUTBOX_NEXT_ATTEMPT_INDEX);
+	}
+
+	private void createIndexes(SQLiteDatabase db) {
+		// Trailing date,id columns serve the ORDER BY and keyset predicate of paged reads
+		String CREATE_INBOX_CHANNEL_INDEX = "CREATE INDEX IF NOT EXISTS " + INDEX_INBOX_CHANNEL + " ON " + TABLE_INBOX + "(" + KEY_INBOX_CHANNEL + ","
+				+ KEY_INBOX_SUBCHANNEL + "," + KEY_INBOX_DELETED + "," + KEY_INBOX_DATE + "," + KEY_INBOX_ID + ")";
+		db.execSQL(CREATE_INBOX_CHANNEL_INDEX);
+
+		String CREATE_INBOX_EXPIRY_INDEX = "CREATE INDEX IF NOT EXISTS " + INDEX_INBOX_EXPIRY + " ON " + TABLE_INBOX + "(" + KEY_INBOX_EXPIRY + ")";
+		db.execSQL(CREATE_INBOX_EXPIRY_INDEX);
+
+		String CREATE_DELIVERY_RECEIVER_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_DELIVERY_RECEIVER + " ON " + TABLE_DELIVERY + "("
+				+ KEY_DELIVERY_INBOX_ID + "," + KEY_DELIVERY_RECEIVER + ")";
+		db.execSQL(CREATE_DELIVERY_RECEIVER_INDEX);
 	}
 
 	@Override
 	public synchronized void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 		
-		if( oldVersion == 14 && newVersion == 15 ) {
-			String ALTER_INBOX_TABLE = "ALTER TABLE " + TABLE_INBOX + " ADD COLUMN " + KEY_INBOX_PROVIDER + " TEXT";
-			db.execSQL(ALTER_INBOX_TABLE);
-		} else {		
+		if( oldVersion < 14 ) {
 			db.execSQL("DROP TABLE IF EXISTS " + TABLE_OUTBOX);
 			db.execSQL("DROP TABLE IF EXISTS " + TABLE_DELIVERY);
 			db.execSQL("DROP TABLE IF EXISTS " + TABLE_INBOX);
 			db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHANNELS);
 			onCreate(db);
+			return;
+		}
+
+		if( oldVersion < 15 ) {
+			String ALTER_INBOX_TABLE = "ALTER TABLE " + TABLE_INBOX + " ADD COLUMN " + KEY_INBOX_PROVIDER + " TEXT";
+			db.execSQL(ALTER_INBOX_TABLE);
+		}
+
+		if( oldVersion < 16 ) {
+			// Repeated acks used to insert duplicate delivery rows, which would break the unique index
+			String DEDUPE_DELIVERY_TABLE = "DELETE FROM " + TABLE_DELIVERY + " WHERE rowid NOT IN (SELECT MIN(rowid) FROM " + TABLE_DELIVERY
+					+ " GROUP BY " + KEY_DELIVERY_INBOX_ID + "," + KEY_DELIVERY_RECEIVER + ")";
+			db.execSQL(DEDUPE_DELIVERY_TABLE);
+			createIndexes(db);
+		}
+
+		if( oldVersion < 17 ) {
+			db.execSQL("DROP INDEX IF EXISTS " + INDEX_INBOX_CHANNEL);
+			createIndexes(db);
+		}
+
+		if( oldVersion < 18 ) {
+			// Existing rows start with no failed attempts and are due straight away
+			db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + KEY_OUTBOX_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0");
+			db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + KEY_OUTBOX_NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0");
+			createOutboxIndexes(db);
+		}
+
+		if( oldVersion < 19 ) {
+			db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + KEY_OUTBOX_PRIORITY + " INTEGER NOT NULL DEFAULT 0");
+		}
+	}
+
+	/**
+	 * Run a write on the writer thread and wait for its transaction to commit
+	 */
+	private <T> T write(WriteQueue.Write<T> write) throws NotificationsDBException {
+		try {
+			return mWriter.submit(write).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new NotificationsDBException("Interrupted waiting for write");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof NotificationsDBException) {
+				throw (NotificationsDBException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new NotificationsDBException("Write failed: " + cause);
+		}
+	}
+
+	/**
+	 * As {@link #write(WriteQueue.Write)}, for callers that only expect SQLExceptions
+	 */
+	private <T> T writeUnchecked(WriteQueue.Write<T> write) {
+		try {
+			return write(write);
+		} catch (NotificationsDBException e) {
+			throw new SQLException(e.getMessage());
 		}
 	}
 
 	public void addChannel(String channel) throws NotificationsDBException, SQLException {
 		validateChannel(channel);
-		ContentValues values = new ContentValues();
+		final ContentValues values = new ContentValues();
 		values.put(KEY_CHANNEL_NAME, channel);		
-		synchronized (this) {			
-			dbWrite.insertOrThrow(TABLE_CHANNELS, null, values);
-		}
+		write(new WriteQueue.Write<Void>() {
+			@Override
+			public Void apply(SQLiteDatabase db) {
+				db.insertOrThrow(TABLE_CHANNELS, null, values);
+				return null;
+			}
+		});
 	}
 
-	public synchronized void removeChannel(String channel) {	
+	public void removeChannel(final String channel) {	
 		
-		dbWrite.beginTransaction();
-		try {
-			dbWrite.delete(TABLE_CHANNELS, KEY_CHANNEL_NAME + " = ?", new String[] { channel });
-			dbWrite.delete(TABLE_INBOX, KEY_INBOX_CHANNEL + " = ?", new String[] { channel });
-			dbWrite.setTransactionSuccessful();
-		} finally {
-			dbWrite.endTransaction();
+		final List<String> ids = new ArrayList<String>();
+		final List<String> contents = new ArrayList<String>();
+		writeUnchecked(new WriteQueue.Write<Void>() {
+			@Override
+			public Void apply(SQLiteDatabase db) {
+				// Read in the same transaction, so nothing stored between the read and the delete is missed.
+				// Cleared first, as a write is applied again if its group fails.
+				ids.clear();
+				contents.clear();
+				Cursor cursor = db.query(TABLE_INBOX, new String[] { KEY_INBOX_ID, KEY_INBOX_CONTENT }, KEY_INBOX_CHANNEL + " = ?", new String[] { channel }, null, null, null);
+				try {
+					while (cursor.moveToNext()) {
+						ids.add(cursor.getString(0));
+						contents.add(cursor.getString(1));
+					}
+				} finally {
+					cursor.close();
+				}
+				db.delete(TABLE_CHANNELS, KEY_CHANNEL_NAME + " = ?", new String[] { channel });
+				db.delete(TABLE_INBOX, KEY_INBOX_CHANNEL + " = ?", new String[] { channel });
+				return null;
+			}
+		});
+
+		for (int i = 0; i < ids.size(); i++) {
+			mRecentInboxIds.remove(ids.get(i));
+			String stored = contents.get(i);
+			if (stored != null && stored.length() > 0) {
+				mInboxContentStore.deleteContent(stored);
+			}
 		}
 	}
 
@@ -173,48 +406,164 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 		List<String> channels = new ArrayList<String>();
 		String sql = "SELECT " + KEY_CHANNEL_NAME + " FROM " + TABLE_CHANNELS;
 		
-		synchronized (this) {		
-			Cursor cursor = null;		
+		Cursor cursor = null;		
+		try {
+			cursor = dbRead.rawQuery(sql, null);
+			if (cursor.moveToFirst()) {
+				do {
+					channels.add(cursor.getString(0));
+				} while (cursor.moveToNext());
+			}
+			return channels;
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
+			}
+		}				
+	}
+
+	public void addInboxMessage(final PushMessage message) throws NotificationsDBException, SQLException {
+		validateMessage(message);
+		final String content = mInboxContentStore.save(message.getContent());
+		
+		CTLog.getInstance().log("shell", Priority.DEBUG_INT, "Adding to inbox: " + message.getId());
+		try {
+			write(new WriteQueue.Write<Void>() {
+				@Override
+				public Void apply(SQLiteDatabase db) {
+					bindInbox(mInsertInbox, message, content);
+					mInsertInbox.executeInsert();
+					return null;
+				}
+			});
+		} catch (SQLException e) {
+			mInboxContentStore.deleteContent(content);
+			throw e;
+		}
+		mRecentInboxIds.add(message.getId());
+		CTLog.getInstance().log("shell", Priority.DEBUG_INT, "Added to inbox: " + message.getId());
+		
+		CTLog.getInstance().log("notify-audit", Priority.INFO_INT, "Receive in Inbox: " + message.toString());
+	}
+
+	/**
+	 * Add a batch of received messages to the inbox in a single transaction.
+	 * Invalid messages, duplicates within the batch and messages already in
+	 * the inbox are skipped.
+	 *
+	 * @return the messages that were actually added, in batch order
+	 */
+	public List<PushMessage> addInboxMessages(List<PushMessage> messages) throws SQLException {
+		Map<String, PushMessage> candidates = new LinkedHashMap<String, PushMessage>();
+		for (PushMessage message : messages) {
+			try {
+				validateMessage(message);
+			} catch (NotificationsDBException e) {
+				continue;
+			}
+			if (!candidates.containsKey(message.getId()) && !mRecentInboxIds.contains(message.getId())) {
+				candidates.put(message.getId(), message);
+			}
+		}
+		if (candidates.isEmpty()) {
+			return new ArrayList<PushMessage>();
+		}
+		Set<String> existing = getExistingInboxIds(candidates.keySet());
+		mRecentInboxIds.addAll(existing);
+		candidates.keySet().removeAll(existing);
+
+		final List<PushMessage> pending = new ArrayList<PushMessage>();
+		final List<String> contents = new ArrayList<String>();
+		for (PushMessage message : candidates.values()) {
 			try {
-				cursor = dbRead.rawQuery(sql, null);
+				contents.add(mInboxContentStore.save(message.getContent()));
+				pending.add(message);
+			} catch (NotificationsDBException e) {
+				CTLog.getInstance().log("shell", Priority.WARN_INT, "Not adding to inbox: " + message.getId());
+			}
+		}
+
+		if (pending.isEmpty()) {
+			return new ArrayList<PushMessage>();
+		}
+
+		CTLog.getInstance().log("shell", Priority.DEBUG_INT, "Adding " + pending.size() + " messages to inbox");
+		List<PushMessage> added;
+		try {
+			added = writeUnchecked(new WriteQueue.Write<List<PushMessage>>() {
+				@Override
+				public List<PushMessage> apply(SQLiteDatabase db) {
+					List<PushMessage> inserted = new ArrayList<PushMessage>();
+					for (int i = 0; i < pending.size(); i++) {
+						bindInbox(mInsertInboxIfAbsent, pending.get(i), contents.get(i));
+						if (mInsertInboxIfAbsent.executeInsert() != -1) {
+							inserted.add(pending.get(i));
+						}
+					}
+					return inserted;
+				}
+			});
+		} catch (SQLException e) {
+			for (String content : contents) {
+				mInboxContentStore.deleteContent(content);
+			}
+			throw e;
+		}
+		if (added.size() < pending.size()) {
+			// Lost a race with another insert of the same message
+			for (int i = 0; i < pending.size(); i++) {
+				if (!added.contains(pending.get(i))) {
+					mInboxContentStore.deleteContent(contents.get(i));
+				}
+			}
+		}
+		CTLog.getInstance().log("shell", Priority.DEBUG_INT, "Added " + added.size() + " messages to inbox");
+
+		for (PushMessage message : added) {
+			mRecentInboxIds.add(message.getId());
+			CTLog.getInstance().log("notify-audit", Priority.INFO_INT, "Receive in Inbox: " + message.toString());
+		}
+		return added;
+	}
+
+	public long getDuplicateProbeHits() {
+		return mRecentInboxIds.getHits();
+	}
+
+	public long getDuplicateProbeMisses() {
+		return mRecentInboxIds.getMisses();
+	}
+
+	private Set<String> getExistingInboxIds(Collection<String> messageIds) {
+		Set<String> existing = new HashSet<String>();
+		List<String> ids = new ArrayList<String>(messageIds);
+
+		for (int start = 0; start < ids.size(); start += MAX_QUERY_ARGS) {
+			List<String> chunk = ids.subList(start, Math.min(start + MAX_QUERY_ARGS, ids.size()));
+			StringBuilder sql = new StringBuilder("SELECT " + KEY_INBOX_ID + " FROM " + TABLE_INBOX + " WHERE " + KEY_INBOX_ID + " IN (");
+			for (int i = 0; i < chunk.size(); i++) {
+				sql.append(i == 0 ? "?" : ",?");
+			}
+			sql.append(")");
+
+			Cursor cursor = null;
+			try {
+				cursor = dbRead.rawQuery(sql.toString(), chunk.toArray(new String[chunk.size()]));
 				if (cursor.moveToFirst()) {
 					do {
-						channels.add(cursor.getString(0));
+						existing.add(cursor.getString(0));
 					} while (cursor.moveToNext());
 				}
-				return channels;
 			} finally {
 				if( cursor != null ) {
 					cursor.close();
 				}
-			}				
+			}
 		}
+		return existing;
 	}
 
-	public void addInboxMessage(PushMessage message) throws NotificationsDBException, SQLException {
-		validateMessage(message);
-		ContentValues values = new ContentValues();
-		values.put(KEY_INBOX_ID, message.getId());
-		values.put(KEY_INBOX_DATE, message.getDate());
-		values.put(KEY_INBOX_CHANNEL, message.getChannel());
-		values.put(KEY_INBOX_SUBCHANNEL, message.getSubchannel());
-		values.put(KEY_INBOX_CONTENT, mInboxContentStore.save(message.getContent()));
-		values.put(KEY_INBOX_EXPIRY, message.getExpiry());
-		values.put(KEY_INBOX_NOTIFICATION, message.getNotification());
-		values.put(KEY_INBOX_DELETED, false);
-		values.put(KEY_INBOX_PROVIDER, message.getProvider());
-		// values.put(KEY_INBOX_SIGNATURE, message.getSignature());		
-		
-		CTLog.getInstance().log("shell", Priority.DEBUG_INT, "Adding to inbox: " + message.getId());
-		synchronized (this) {
-			dbWrite.insertOrThrow(TABLE_INBOX, null, values);
-		}		
-		CTLog.getInstance().log("shell", Priority.DEBUG_INT, "Added to inbox: " + message.getId());
-		
-		CTLog.getInstance().log("notify-audit", Priority.INFO_INT, "Receive in Inbox: " + message.toString());
-	}
-
-	public void removeInboxMessage(String messageid, boolean removeAltogether) throws NotificationsDBException {
+	public void removeInboxMessage(final String messageid, final boolean removeAltogether) throws NotificationsDBException {
 
 		if (messageid.length() == 0) {
 			throw new NotificationsDBException("Invalid message id");
@@ -223,27 +572,34 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 		PushMessage pm = getMessage(messageid);
 		CTLog.getInstance().log("shell", Priority.DEBUG_INT, "removeInboxMessage: " + messageid + ", " + pm.getChannel() + ", " + pm.getSubchannel());		
 		
-		String content = pm.getContent();
-		mFileRefHandler.deleteFiles(content);
-		mInboxContentStore.deleteContent(content);
-		
-		synchronized (this) {		
-			dbWrite.beginTransaction();
-			try {
+		// Read in the write, and only released if this call removed it, so a racing purge or remove can't release it twice
+		String stored = write(new WriteQueue.Write<String>() {
+			@Override
+			public String apply(SQLiteDatabase db) {
+				String content = getStoredContent(db, TABLE_INBOX, KEY_INBOX_ID, KEY_INBOX_CONTENT, messageid);
+				int removed;
 				if (removeAltogether) {			
-					dbWrite.delete(TABLE_INBOX, KEY_INBOX_ID + " = ?", new String[] { messageid });
-					dbWrite.delete(TABLE_DELIVERY, KEY_DELIVERY_INBOX_ID + " = ?", new String[] { messageid });
+					mDeleteInbox.bindString(1, messageid);
+					removed = mDeleteInbox.executeUpdateDelete();
+					mDeleteDelivery.bindString(1, messageid);
+					mDeleteDelivery.executeUpdateDelete();
 
 				} else {
 					ContentValues args = new ContentValues();
 					args.put(KEY_INBOX_DELETED, true);
 					args.put(KEY_INBOX_CONTENT, "");
-					dbWrite.update(TABLE_INBOX, args, KEY_INBOX_ID + " = ?", new String[] { messageid });
+					removed = db.update(TABLE_INBOX, args, KEY_INBOX_ID + " = ?", new String[] { messageid });
 				}
-				dbWrite.setTransactionSuccessful();
-			} finally {
-				dbWrite.endTransaction();
+				return removed > 0 ? content : null;
 			}
+		});
+		if (removeAltogether) {
+			mRecentInboxIds.remove(messageid);
+		}
+
+		if (stored != null && stored.length() > 0) {
+			mFileRefHandler.deleteFiles(pm.getContent());
+			mInboxContentStore.deleteContent(stored);
 		}
 		
 		CTLog.getInstance().log("notify-audit", Priority.INFO_INT, "Remove: " + pm.getId());
@@ -255,30 +611,49 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 		
 		List<PushMessage> messages = new ArrayList<PushMessage>();
 		
-		synchronized (this) {
-			Cursor cursor = null;
-			try {
-				cursor = dbRead.rawQuery(sql, new String[0]);	
-				if (cursor.moveToFirst()) {
-					do {
-						PushMessage m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), cursor.getString(4));
-						m.setDate(cursor.getLong(1));
-						m.setExpiry(cursor.getLong(5));
-						m.setNotification(cursor.getString(6));
-						m.setProvider(cursor.getString(8));
-						messages.add(m);
-					} while (cursor.moveToNext());
-				}
-			} finally {
-				if( cursor != null ) {
-					cursor.close();
-				}				
+		Cursor cursor = null;
+		try {
+			cursor = dbRead.rawQuery(sql, new String[0]);	
+			if (cursor.moveToFirst()) {
+				do {
+					PushMessage m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), cursor.getString(4));
+					m.setDate(cursor.getLong(1));
+					m.setExpiry(cursor.getLong(5));
+					m.setNotification(cursor.getString(6));
+					m.setProvider(cursor.getString(8));
+					messages.add(m);
+				} while (cursor.moveToNext());
 			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
+			}				
 		}
 		return messages;
 	}
 	
 	public List<PushMessage> getInboxMessages(String channel, String subchannel, boolean includeDeleted) throws NotificationsDBException {
+		return getInboxMessages(channel, subchannel, includeDeleted, true, 0, null, 0);
+	}
+
+	/**
+	 * Keyset paged variant of {@link #getInboxMessages(String, String, boolean)}.
+	 * Messages are ordered by date then id. Pass the date and id of the last
+	 * message of the previous page, or a null afterId for the first page.
+	 */
+	public List<PushMessage> getInboxMessages(String channel, String subchannel, boolean includeDeleted, long afterDate, String afterId, int limit) throws NotificationsDBException {
+		return getInboxMessages(channel, subchannel, includeDeleted, true, afterDate, afterId, limit);
+	}
+
+	/**
+	 * Header-only variant of {@link #getInboxMessages(String, String, boolean)}.
+	 * Message content is not read from disk and is returned as an empty object.
+	 */
+	public List<PushMessage> getInboxHeaders(String channel, String subchannel, boolean includeDeleted) throws NotificationsDBException {
+		return getInboxMessages(channel, subchannel, includeDeleted, false, 0, null, 0);
+	}
+
+	private List<PushMessage> getInboxMessages(String channel, String subchannel, boolean includeDeleted, boolean withContent, long afterDate, String afterId, int limit) throws NotificationsDBException {
 		validateChannel(channel);
 		if (subchannel.length() == 0) {
 			throw new NotificationsDBException("Invalid sub channel");
@@ -295,29 +670,29 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 			sql += " AND " + KEY_INBOX_DELETED + " = ?";
 			args.add("0");
 		}
+		sql += pageClause(afterDate, afterId, limit, args);
 		
 		List<PushMessage> messages = new ArrayList<PushMessage>();
 		
-		synchronized (this) {
-			Cursor cursor = null;
-			try {
-				cursor = dbRead.rawQuery(sql, args.toArray(new String[3]));			
-				if (cursor.moveToFirst()) {
-					do {
-						PushMessage m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), mInboxContentStore.load(cursor.getString(4)));
-						m.setDate(cursor.getLong(1));
-						m.setExpiry(cursor.getLong(5));
-						m.setNotification(cursor.getString(6));
-						m.setProvider(cursor.getString(8));
-						messages.add(m);
-					} while (cursor.moveToNext());
-				}
-			} finally {
-				if( cursor != null ) {
-					cursor.close();
-				}				
+		Cursor cursor = null;
+		try {
+			cursor = dbRead.rawQuery(sql, args.toArray(new String[args.size()]));			
+			if (cursor.moveToFirst()) {
+				do {
+					PushMessage m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), cursor.getString(4));
+					m.setDate(cursor.getLong(1));
+					m.setExpiry(cursor.getLong(5));
+					m.setNotification(cursor.getString(6));
+					m.setProvider(cursor.getString(8));
+					messages.add(m);
+				} while (cursor.moveToNext());
 			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
+			}				
 		}
+		resolveContent(messages, mInboxContentStore, withContent);
 		return messages;		
 	}
 
@@ -328,46 +703,39 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 				+ KEY_INBOX_ID + " = ?";		
 		Cursor cursor = null;
 		
-		synchronized (this) {
-			try {
-				cursor = dbRead.rawQuery(sql, new String[] { messageId });			
-				if (cursor.moveToFirst()) {
-					CTLog.getInstance().log("shell", 0, "Msg: " + cursor.getString(0) + ", deleted: " + cursor.getString(8));
-					m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), mInboxContentStore.load(cursor.getString(4)));
-					m.setDate(cursor.getLong(1));
-					m.setExpiry(cursor.getLong(5));
-					m.setNotification(cursor.getString(6));
-					m.setProvider(cursor.getString(8));
-				}
-			} finally {
-				if( cursor != null ) {
-					cursor.close();
-				}
+		try {
+			cursor = dbRead.rawQuery(sql, new String[] { messageId });			
+			if (cursor.moveToFirst()) {
+				CTLog.getInstance().log("shell", 0, "Msg: " + cursor.getString(0) + ", deleted: " + cursor.getString(8));
+				m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), cursor.getString(4));
+				m.setDate(cursor.getLong(1));
+				m.setExpiry(cursor.getLong(5));
+				m.setNotification(cursor.getString(6));
+				m.setProvider(cursor.getString(8));
+			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
 			}
 		}
+		if (m != null) {
+			m.setContent(mInboxContentStore.load(m.getContent()));
+		}
 		return m;
 		
 	}
 	
-	private synchronized boolean inboxMessageExists(String messageid) {
+	private boolean inboxMessageExists(String messageid) {
 		if (TextUtils.isEmpty(messageid)) {
 			return false;
 		}
-		String sql = "SELECT 1 FROM " + TABLE_INBOX + " WHERE " + KEY_INBOX_ID + " = ?";
-		Cursor cursor = null;
-		try {
-			cursor = dbRead.rawQuery(sql, new String[] {messageid});
-			return (cursor.getCount() > 0);
-		} 
-		finally {
-			if (cursor != null) {
-				cursor.close();
-			}
+		synchronized (mInboxExists) {
+			mInboxExists.bindString(1, messageid);
+			return mInboxExists.simpleQueryForLong() > 0;
 		}
-
 	}
 
-	public boolean inboxMessageDelivered(String messageid, String receiver) throws NotificationsDBException, SQLException {
+	public boolean inboxMessageDelivered(final String messageid, final String receiver) throws NotificationsDBException, SQLException {
 		
 		CTLog.getInstance().log("shell", Priority.DEBUG_INT, "inboxMessageDelivered: " + messageid );
 		
@@ -377,16 +745,18 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 		if (receiver.length() == 0) {
 			throw new NotificationsDBException("Invalid receiver");
 		}
-		ContentValues values = new ContentValues();
-		values.put(KEY_DELIVERY_INBOX_ID, messageid);
-		values.put(KEY_DELIVERY_RECEIVER, receiver);
-		synchronized (this) {
-			if (inboxMessageExists(messageid)) {
-				dbWrite.insertOrThrow(TABLE_DELIVERY, null, values);
-				return true;
+		return write(new WriteQueue.Write<Boolean>() {
+			@Override
+			public Boolean apply(SQLiteDatabase db) {
+				if (inboxMessageExists(messageid)) {
+					mInsertDelivery.bindString(1, messageid);
+					mInsertDelivery.bindString(2, receiver);
+					mInsertDelivery.executeInsert();
+					return true;
+				}
+				return false;
 			}
-		}
-		return false;
+		});
 	}
 
 	// TODO: I think this is broken, but its not used anywhere
@@ -401,14 +771,12 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 				+ " = ?";
 		Boolean delivered = false;
 		Cursor cursor = null;
-		synchronized (this) {	
-			try {
-				cursor = dbRead.rawQuery(sql, null);
-				delivered = cursor.moveToFirst();
-			} finally {
-				if( cursor != null ) {
-					cursor.close();
-				}
+		try {
+			cursor = dbRead.rawQuery(sql, null);
+			delivered = cursor.moveToFirst();
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
 			}
 		}
 		return delivered;		
@@ -418,70 +786,114 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 
 		// SELECT id
 		// id1,date,channel,subchannel,content,expiry,notification,signature
-		// FROM inbox JOIN (SELECT id id2 FROM inbox EXCEPT SELECT inboxid FROM
-		// delivery WHERE receiver = 'receiver') on id2 = id1 WHERE deleted = 0
+		// FROM inbox WHERE deleted = 0 AND NOT EXISTS (SELECT 1 FROM delivery
+		// WHERE inboxid = id AND receiver = 'receiver')
 		String sql = "SELECT " + KEY_INBOX_ID + " id1," + KEY_INBOX_DATE + "," + KEY_INBOX_CHANNEL + "," + KEY_INBOX_SUBCHANNEL + "," + KEY_INBOX_CONTENT + ","
 				+ KEY_INBOX_EXPIRY + "," + KEY_INBOX_NOTIFICATION + "," + KEY_INBOX_SIGNATURE + "," + KEY_INBOX_PROVIDER + "," + KEY_INBOX_DELETED + " FROM " + TABLE_INBOX
-				+ " JOIN (SELECT " + KEY_INBOX_ID + " id2 FROM " + TABLE_INBOX + " EXCEPT SELECT " + KEY_DELIVERY_INBOX_ID + " FROM " + TABLE_DELIVERY
-				+ " WHERE " + KEY_DELIVERY_RECEIVER + " = ?) ON id2 = id1" + " WHERE " + KEY_INBOX_DELETED + " = 0 ";		
+				+ " WHERE " + KEY_INBOX_DELETED + " = 0 AND NOT EXISTS (SELECT 1 FROM " + TABLE_DELIVERY + " WHERE " + KEY_DELIVERY_INBOX_ID + " = " + TABLE_INBOX + "."
+				+ KEY_INBOX_ID + " AND " + KEY_DELIVERY_RECEIVER + " = ?)";
 		List<PushMessage> messages = new ArrayList<PushMessage>();
 		Cursor cursor = null;
-		synchronized (this) {
-			try {
-				cursor = dbRead.rawQuery(sql, new String[] { callbackid });			
-				if (cursor.moveToFirst()) {
-					CTLog.getInstance().log("shell", 0, "Msg: " + cursor.getString(0) + ", deleted: " + cursor.getInt(8));
-					do {
-						PushMessage m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), mInboxContentStore.load(cursor.getString(4)));
-						m.setDate(cursor.getLong(1));
-						m.setExpiry(cursor.getLong(5));
-						m.setNotification(cursor.getString(6));
-						m.setProvider(cursor.getString(8));
-						messages.add(m);
-					} while (cursor.moveToNext());
-				}
-			} finally {
-				if( cursor != null ) {
-					cursor.close();
-				}
+		try {
+			cursor = dbRead.rawQuery(sql, new String[] { callbackid });			
+			if (cursor.moveToFirst()) {
+				CTLog.getInstance().log("shell", 0, "Msg: " + cursor.getString(0) + ", deleted: " + cursor.getInt(8));
+				do {
+					PushMessage m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), cursor.getString(4));
+					m.setDate(cursor.getLong(1));
+					m.setExpiry(cursor.getLong(5));
+					m.setNotification(cursor.getString(6));
+					m.setProvider(cursor.getString(8));
+					messages.add(m);
+				} while (cursor.moveToNext());
+			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
 			}
-		}		
+		}
+		resolveContent(messages, mInboxContentStore, true);
 		return messages;		
 	}
 
 	public List<PushMessage> getUndeliveredInboxMessages(String channel, String subchannel, String receiver) throws NotificationsDBException {
+		return getUndeliveredInboxMessages(channel, subchannel, receiver, true, 0, null, 0);
+	}
+
+	/**
+	 * Ids of the unexpired messages the receiver hasn't acknowledged, on any
+	 * channel, oldest first
+	 */
+	public List<String> getUndeliveredInboxIds(String receiver) {
+		String sql = "SELECT " + KEY_INBOX_ID + " FROM " + TABLE_INBOX + " WHERE " + KEY_INBOX_DELETED + " = 0 AND (" + KEY_INBOX_EXPIRY + " = 0 OR "
+				+ KEY_INBOX_EXPIRY + " > ?) AND NOT EXISTS (SELECT 1 FROM " + TABLE_DELIVERY + " WHERE " + KEY_DELIVERY_INBOX_ID + " = " + TABLE_INBOX + "."
+				+ KEY_INBOX_ID + " AND " + KEY_DELIVERY_RECEIVER + " = ?) ORDER BY " + KEY_INBOX_DATE + "," + KEY_INBOX_ID;
+		List<String> ids = new ArrayList<String>();
+		Cursor cursor = null;
+		try {
+			cursor = dbRead.rawQuery(sql, new String[] { String.valueOf(new Date().getTime()), receiver });
+			if (cursor.moveToFirst()) {
+				do {
+					ids.add(cursor.getString(0));
+				} while (cursor.moveToNext());
+			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Keyset paged variant of {@link #getUndeliveredInboxMessages(String, String, String)}.
+	 * Messages are ordered by date then id. Pass the date and id of the last
+	 * message of the previous page, or a null afterId for the first page.
+	 */
+	public List<PushMessage> getUndeliveredInboxMessages(String channel, String subchannel, String receiver, long afterDate, String afterId, int limit) throws NotificationsDBException {
+		return getUndeliveredInboxMessages(channel, subchannel, receiver, true, afterDate, afterId, limit);
+	}
+
+	/**
+	 * Header-only variant of {@link #getUndeliveredInboxMessages(String, String, String)}.
+	 * Message content is not read from disk and is returned as an empty object.
+	 */
+	public List<PushMessage> getUndeliveredInboxHeaders(String channel, String subchannel, String receiver) throws NotificationsDBException {
+		return getUndeliveredInboxMessages(channel, subchannel, receiver, false, 0, null, 0);
+	}
+
+	private List<PushMessage> getUndeliveredInboxMessages(String channel, String subchannel, String receiver, boolean withContent, long afterDate, String afterId, int limit) throws NotificationsDBException {
 
 		// SELECT id
 		// id1,date,channel,subchannel,content,expiry,notification,signature
-		// FROM inbox JOIN (SELECT id id2 FROM inbox EXCEPT SELECT inboxid FROM
-		// delivery WHERE receiver = 'receiver') on id2 = id1 WHERE channel =
-		// 'channel' AND subchannel = 'subchannel'
+		// FROM inbox WHERE channel = 'channel' AND subchannel = 'subchannel'
+		// AND deleted = 0 AND NOT EXISTS (SELECT 1 FROM delivery WHERE
+		// inboxid = id AND receiver = 'receiver')
 
 		List<String> args = new ArrayList<String>();
 
 		String sql = "SELECT " + KEY_INBOX_ID + " id1," + KEY_INBOX_DATE + "," + KEY_INBOX_CHANNEL + "," + KEY_INBOX_SUBCHANNEL + "," + KEY_INBOX_CONTENT + ","
 				+ KEY_INBOX_EXPIRY + "," + KEY_INBOX_NOTIFICATION + "," + KEY_INBOX_SIGNATURE + "," + KEY_INBOX_PROVIDER + "," + KEY_INBOX_DELETED + " FROM " + TABLE_INBOX
-				+ " JOIN (SELECT " + KEY_INBOX_ID + " id2 FROM " + TABLE_INBOX + " EXCEPT SELECT " + KEY_DELIVERY_INBOX_ID + " FROM " + TABLE_DELIVERY;
-
-		if (!receiver.isEmpty()) {
-			sql += " WHERE " + KEY_DELIVERY_RECEIVER + " = ?";
-			args.add(receiver);
-		}
-		sql += ") ON id2 = id1 ";
+				+ " WHERE ";
 
 		if (!channel.isEmpty()) {
-			sql += "WHERE " + KEY_INBOX_CHANNEL + " = ? ";
+			sql += KEY_INBOX_CHANNEL + " = ? AND ";
 			args.add(channel);
 		}
 
 		if (!subchannel.isEmpty()) {
-			sql += channel.isEmpty() ? "WHERE " : "AND ";
-			sql += KEY_INBOX_SUBCHANNEL + " = ? ";
+			sql += KEY_INBOX_SUBCHANNEL + " = ? AND ";
 			args.add(subchannel);
 		}
 
-		sql += (channel.isEmpty() && subchannel.isEmpty()) ? "WHERE " : "AND ";
-		sql += " " + KEY_INBOX_DELETED + " = 0 ";
+		sql += KEY_INBOX_DELETED + " = 0 AND NOT EXISTS (SELECT 1 FROM " + TABLE_DELIVERY + " WHERE " + KEY_DELIVERY_INBOX_ID + " = " + TABLE_INBOX + "." + KEY_INBOX_ID;
+
+		if (!receiver.isEmpty()) {
+			sql += " AND " + KEY_DELIVERY_RECEIVER + " = ?";
+			args.add(receiver);
+		}
+		sql += ")";
+		sql += pageClause(afterDate, afterId, limit, args);
 		
 		String[] stringArray = null;
 		if (!args.isEmpty()) {
@@ -490,30 +902,29 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 		}
 		List<PushMessage> messages = new ArrayList<PushMessage>();
 		Cursor cursor = null;
-		synchronized (this) {					
-			try {
-				cursor = dbRead.rawQuery(sql, stringArray);			
-				if (cursor.moveToFirst()) {
-					CTLog.getInstance().log("shell", 0, "Msg: " + cursor.getString(0) + ", deleted: " + cursor.getInt(8));
-					do {
-						PushMessage m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), mInboxContentStore.load(cursor.getString(4)));
-						m.setDate(cursor.getLong(1));
-						m.setExpiry(cursor.getLong(5));
-						m.setNotification(cursor.getString(6));
-						m.setProvider(cursor.getString(8));
-						messages.add(m);
-					} while (cursor.moveToNext());
-				}
-			} finally {
-				if( cursor != null ) {
-					cursor.close();
-				}
+		try {
+			cursor = dbRead.rawQuery(sql, stringArray);			
+			if (cursor.moveToFirst()) {
+				CTLog.getInstance().log("shell", 0, "Msg: " + cursor.getString(0) + ", deleted: " + cursor.getInt(8));
+				do {
+					PushMessage m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), cursor.getString(4));
+					m.setDate(cursor.getLong(1));
+					m.setExpiry(cursor.getLong(5));
+					m.setNotification(cursor.getString(6));
+					m.setProvider(cursor.getString(8));
+					messages.add(m);
+				} while (cursor.moveToNext());
+			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
 			}
 		}
+		resolveContent(messages, mInboxContentStore, withContent);
 		return messages;
 	}
 
-	public void addOutboxMessage(PushMessage message) throws NotificationsDBException, SQLException {
+	public void addOutboxMessage(final PushMessage message) throws NotificationsDBException, SQLException {
 		validateMessage(message);
 		
 		String content = message.getContent();
@@ -522,26 +933,36 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 		} catch (Exception e) {
 			throw new NotificationsDBException("mFileRefHandler.convertSendingFileRefs: " + e.getMessage());
 		} 
-		content = mOutboxContentStore.save(content);
+		final String stored = mOutboxContentStore.save(content);
 		
-		ContentValues values = new ContentValues();
-		values.put(KEY_OUTBOX_ID, message.getId());
-		values.put(KEY_OUTBOX_DATE, message.getDate());
-		values.put(KEY_OUTBOX_CHANNEL, message.getChannel());
-		values.put(KEY_OUTBOX_SUBCHANNEL, message.getSubchannel());
-		values.put(KEY_OUTBOX_CONTENT, content);
-		values.put(KEY_OUTBOX_EXPIRY, message.getExpiry());
-		values.put(KEY_OUTBOX_NOTIFICATION, message.getNotification());
-		// values.put(KEY_OUTBOX_SIGNATURE, message.getSignature());	
-		values.put(KEY_OUTBOX_PROVIDER, message.getProvider());
-		synchronized (this) {				
-			dbWrite.insertOrThrow(TABLE_OUTBOX, null, values);
+		try {
+			write(new WriteQueue.Write<Void>() {
+				@Override
+				public Void apply(SQLiteDatabase db) {
+					mInsertOutbox.clearBindings();
+					bindString(mInsertOutbox, 1, message.getId());
+					mInsertOutbox.bindLong(2, message.getDate());
+					bindString(mInsertOutbox, 3, message.getChannel());
+					bindString(mInsertOutbox, 4, message.getSubchannel());
+					bindString(mInsertOutbox, 5, stored);
+					mInsertOutbox.bindLong(6, message.getExpiry());
+					bindString(mInsertOutbox, 7, message.getNotification());
+					// signature is not stored
+					bindString(mInsertOutbox, 8, message.getProvider());
+					mInsertOutbox.bindLong(9, message.getPriority());
+					mInsertOutbox.executeInsert();
+					return null;
+				}
+			});
+		} catch (SQLException e) {
+			mOutboxContentStore.deleteContent(stored);
+			throw e;
 		}
 		
 		CTLog.getInstance().log("notify-audit", Priority.INFO_INT, "Queued to send: " + message.toString());
 	}
 
-	public void removeOutboxMessage(String messageid) throws NotificationsDBException {
+	public void removeOutboxMessage(final String messageid) throws NotificationsDBException {
 		if (messageid.length() == 0) {
 			throw new NotificationsDBException("Invalid message id");
 		}
@@ -549,12 +970,19 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 		PushMessage pm = getOutboxMessage(messageid);
 		
 		if( pm != null ) {		
-			String content = pm.getContent();
-			mFileRefHandler.deleteFiles(content);
-			mOutboxContentStore.deleteContent(content);
-			
-			synchronized (this) {
-				dbWrite.delete(TABLE_OUTBOX, KEY_OUTBOX_ID + " = ?", new String[] { messageid });
+			// Read in the write, and only released if this call removed the row
+			String stored = write(new WriteQueue.Write<String>() {
+				@Override
+				public String apply(SQLiteDatabase db) {
+					String content = getStoredContent(db, TABLE_OUTBOX, KEY_OUTBOX_ID, KEY_OUTBOX_CONTENT, messageid);
+					mDeleteOutbox.bindString(1, messageid);
+					return mDeleteOutbox.executeUpdateDelete() > 0 ? content : null;
+				}
+			});
+
+			if (stored != null) {
+				mFileRefHandler.deleteFiles(pm.getContent());
+				mOutboxContentStore.deleteContent(stored);
 			}
 			
 			CTLog.getInstance().log("notify-audit", Priority.INFO_INT, "Removed from outbox: " + messageid);
@@ -564,83 +992,374 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 	}
 
 	public List<PushMessage> getOutboxMessages() throws NotificationsDBException {
+		return queryOutbox("", null);
+	}
+
+	/**
+	 * Outbox messages whose next attempt is due, oldest first. Priority is
+	 * left to the send lanes, which only use it to choose between channels,
+	 * so it must not reorder this list. A message queued after one on the same channel and
+	 * subchannel that is waiting out a retry delay is held back with it, so
+	 * the channel's messages still go in order.
+	 */
+	public List<PushMessage> getDueOutboxMessages(long now) throws NotificationsDBException {
+		String waiting = "waiting";
+		return queryOutbox(" WHERE " + KEY_OUTBOX_NEXT_ATTEMPT + " <= ? AND NOT EXISTS (SELECT 1 FROM " + TABLE_OUTBOX + " AS " + waiting
+				+ " WHERE " + waiting + "." + KEY_OUTBOX_CHANNEL + " IS " + TABLE_OUTBOX + "." + KEY_OUTBOX_CHANNEL
+				+ " AND " + waiting + "." + KEY_OUTBOX_SUBCHANNEL + " IS " + TABLE_OUTBOX + "." + KEY_OUTBOX_SUBCHANNEL
+				+ " AND " + waiting + "." + KEY_OUTBOX_NEXT_ATTEMPT + " > ?"
+				+ " AND (" + waiting + "." + KEY_OUTBOX_DATE + " < " + TABLE_OUTBOX + "." + KEY_OUTBOX_DATE
+				+ " OR (" + waiting + "." + KEY_OUTBOX_DATE + " = " + TABLE_OUTBOX + "." + KEY_OUTBOX_DATE + " AND " + waiting + "." + KEY_OUTBOX_ID + " < " + TABLE_OUTBOX + "." + KEY_OUTBOX_ID + ")))"
+				+ " ORDER BY " + KEY_OUTBOX_DATE + "," + KEY_OUTBOX_ID,
+				new String[] { String.valueOf(now), String.valueOf(now) });
+	}
+
+	private List<PushMessage> queryOutbox(String clause, String[] args) throws NotificationsDBException {
 		String sql = "SELECT " + KEY_OUTBOX_ID + "," + KEY_OUTBOX_DATE + "," + KEY_OUTBOX_CHANNEL + "," + KEY_OUTBOX_SUBCHANNEL + "," + KEY_OUTBOX_CONTENT
-				+ "," + KEY_OUTBOX_EXPIRY + "," + KEY_OUTBOX_NOTIFICATION + "," + KEY_OUTBOX_SIGNATURE + "," + KEY_OUTBOX_PROVIDER + " FROM " + TABLE_OUTBOX;		
+				+ "," + KEY_OUTBOX_EXPIRY + "," + KEY_OUTBOX_NOTIFICATION + "," + KEY_OUTBOX_SIGNATURE + "," + KEY_OUTBOX_PROVIDER + "," + KEY_OUTBOX_PRIORITY
+				+ " FROM " + TABLE_OUTBOX + clause;
 		List<PushMessage> messages = new ArrayList<PushMessage>();
-		synchronized (this) {
-			Cursor cursor = null;
-			try {
-				cursor = dbRead.rawQuery(sql, null);		
-				if (cursor.moveToFirst()) {
-					do {
-						PushMessage m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), mOutboxContentStore.load(cursor.getString(4)));
-						m.setDate(cursor.getLong(1));
-						m.setExpiry(cursor.getLong(5));
-						m.setNotification(cursor.getString(6));
-						m.setProvider(cursor.getString(8));
-						messages.add(m);
-					} while (cursor.moveToNext());
-				}
-			} finally {
-				if( cursor != null ) {
-					cursor.close();
-					SQLiteDatabase.releaseMemory();
-				}
+		Cursor cursor = null;
+		try {
+			cursor = dbRead.rawQuery(sql, args);		
+			if (cursor.moveToFirst()) {
+				do {
+					PushMessage m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), cursor.getString(4));
+					m.setDate(cursor.getLong(1));
+					m.setExpiry(cursor.getLong(5));
+					m.setNotification(cursor.getString(6));
+					m.setProvider(cursor.getString(8));
+					m.setPriority(cursor.getInt(9));
+					messages.add(m);
+				} while (cursor.moveToNext());
+			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
+				SQLiteDatabase.releaseMemory();
 			}
 		}
+		resolveContent(messages, mOutboxContentStore, true);
 		return messages;
 	}
 
+	/**
+	 * When the first outbox message that isn't due yet falls due
+	 *
+	 * @return -1 if no message is waiting to retry
+	 */
+	public long getNextOutboxAttemptTime(long now) {
+		Cursor cursor = null;
+		try {
+			cursor = dbRead.rawQuery("SELECT MIN(" + KEY_OUTBOX_NEXT_ATTEMPT + ") FROM " + TABLE_OUTBOX + " WHERE " + KEY_OUTBOX_NEXT_ATTEMPT + " > ?",
+					new String[] { String.valueOf(now) });
+			if (cursor.moveToFirst() && !cursor.isNull(0)) {
+				return cursor.getLong(0);
+			}
+			return -1;
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Count a failed attempt to send the message and put its next attempt
+	 * back by an exponential, jittered delay.
+	 *
+	 * @return when the message is next due, or -1 if it isn't in the outbox
+	 */
+	public long deferOutboxMessage(final String messageId) throws NotificationsDBException {
+		return write(new WriteQueue.Write<Long>() {
+			@Override
+			public Long apply(SQLiteDatabase db) {
+				Cursor cursor = db.rawQuery("SELECT " + KEY_OUTBOX_ATTEMPTS + " FROM " + TABLE_OUTBOX + " WHERE " + KEY_OUTBOX_ID + " = ?",
+						new String[] { messageId });
+				int attempts;
+				try {
+					if (!cursor.moveToFirst()) {
+						return -1L;
+					}
+					attempts = cursor.getInt(0) + 1;
+				} finally {
+					cursor.close();
+				}
+
+				long delay = RetryBackoff.delay(attempts);
+				long nextAttempt = System.currentTimeMillis() + delay;
+				ContentValues values = new ContentValues();
+				values.put(KEY_OUTBOX_ATTEMPTS, attempts);
+				values.put(KEY_OUTBOX_NEXT_ATTEMPT, nextAttempt);
+				db.update(TABLE_OUTBOX, values, KEY_OUTBOX_ID + " = ?", new String[] { messageId });
+
+				CTLog.getInstance().log("notify-send", Priority.DEBUG_INT, "Attempt " + attempts + " failed for " + messageId + ", next in " + delay / 1000 + "s");
+				return nextAttempt;
+			}
+		});
+	}
+
 	public PushMessage getOutboxMessage(String messageId) throws NotificationsDBException {
 		PushMessage m = null;
 		String sql = "SELECT " + KEY_OUTBOX_ID + "," + KEY_OUTBOX_DATE + "," + KEY_OUTBOX_CHANNEL + "," + KEY_OUTBOX_SUBCHANNEL + "," + KEY_OUTBOX_CONTENT
-				+ "," + KEY_OUTBOX_EXPIRY + "," + KEY_OUTBOX_NOTIFICATION + "," + KEY_OUTBOX_SIGNATURE + "," + KEY_OUTBOX_PROVIDER + " FROM " + TABLE_OUTBOX  + " WHERE "
+				+ "," + KEY_OUTBOX_EXPIRY + "," + KEY_OUTBOX_NOTIFICATION + "," + KEY_OUTBOX_SIGNATURE + "," + KEY_OUTBOX_PROVIDER + "," + KEY_OUTBOX_PRIORITY
+				+ " FROM " + TABLE_OUTBOX  + " WHERE "
 				+ KEY_OUTBOX_ID + " = ?";		
 		Cursor cursor = null;
 		
-		synchronized (this) {
-			try {
-				cursor = dbRead.rawQuery(sql, new String[] { messageId });			
-				if (cursor.moveToFirst()) {
-					CTLog.getInstance().log("shell", 0, "Msg: " + cursor.getString(0));
-					m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), mOutboxContentStore.load(cursor.getString(4)));
-					m.setDate(cursor.getLong(1));
-					m.setExpiry(cursor.getLong(5));
-					m.setNotification(cursor.getString(6));
-					m.setProvider(cursor.getString(8));
-				}
-			} finally {
-				if( cursor != null ) {
-					cursor.close();
-				}
+		try {
+			cursor = dbRead.rawQuery(sql, new String[] { messageId });			
+			if (cursor.moveToFirst()) {
+				CTLog.getInstance().log("shell", 0, "Msg: " + cursor.getString(0));
+				m = new PushMessage(cursor.getString(0), cursor.getString(2), cursor.getString(3), cursor.getString(4));
+				m.setDate(cursor.getLong(1));
+				m.setExpiry(cursor.getLong(5));
+				m.setNotification(cursor.getString(6));
+				m.setProvider(cursor.getString(8));
+				m.setPriority(cursor.getInt(9));
+			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
 			}
 		}
+		if (m != null) {
+			m.setContent(mOutboxContentStore.load(m.getContent()));
+		}
 		return m;
 		
 	}
+
+	/**
+	 * Builds the keyset predicate, ordering and limit for a paged inbox read,
+	 * appending any arguments it needs. Returns an empty clause when the
+	 * read isn't paged.
+	 */
+	private String pageClause(long afterDate, String afterId, int limit, List<String> args) {
+		if (afterId == null && limit <= 0) {
+			return "";
+		}
+		String clause = "";
+		if (afterId != null) {
+			clause += " AND (" + KEY_INBOX_DATE + " > ? OR (" + KEY_INBOX_DATE + " = ? AND " + KEY_INBOX_ID + " > ?))";
+			args.add(String.valueOf(afterDate));
+			args.add(String.valueOf(afterDate));
+			args.add(afterId);
+		}
+		clause += " ORDER BY " + KEY_INBOX_DATE + "," + KEY_INBOX_ID;
+		if (limit > 0) {
+			clause += " LIMIT " + limit;
+		}
+		return clause;
+	}
+
+	/**
+	 * Queries hand back the stored content column, which may be a reference
+	 * into the content store. Resolve it here, once the DB lock has been
+	 * released, so that reading large payloads from disk doesn't block other
+	 * readers and writers.
+	 */
+	private void resolveContent(List<PushMessage> messages, ContentStore store, boolean withContent) throws NotificationsDBException {
+		for (PushMessage m : messages) {
+			m.setContent(withContent ? store.load(m.getContent()) : EMPTY_CONTENT);
+		}
+	}
 	
+	/**
+	 * The content column as stored, which may be a reference into the content
+	 * store. Read it inside the write that removes the row, so that only the
+	 * write that actually removes it releases the reference.
+	 */
+	private String getStoredContent(SQLiteDatabase db, String table, String keyId, String keyContent, String id) {
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery("SELECT " + keyContent + " FROM " + table + " WHERE " + keyId + " = ?", new String[] { id });
+			return cursor.moveToFirst() ? cursor.getString(0) : null;
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
+			}
+		}
+	}
+
+	private Set<String> getContentRefs(String table, String keyContent) {
+		Set<String> refs = new HashSet<String>();
+		Cursor cursor = null;
+		try {
+			cursor = dbRead.rawQuery("SELECT " + keyContent + " FROM " + table + " WHERE " + keyContent + " LIKE ?", new String[] { ContentStore.CONTENT_REF_PREFIX + "%" });
+			if (cursor.moveToFirst()) {
+				do {
+					refs.add(cursor.getString(0));
+				} while (cursor.moveToNext());
+			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
+			}
+		}
+		return refs;
+	}
+
+	/**
+	 * Number of rows holding each content ref, the source of truth for the
+	 * content store's reference counts
+	 */
+	private Map<String, Integer> getContentRefCounts(String table, String keyContent) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		Cursor cursor = null;
+		try {
+			cursor = dbRead.rawQuery("SELECT " + keyContent + ", COUNT(*) FROM " + table + " WHERE " + keyContent + " LIKE ? GROUP BY " + keyContent,
+					new String[] { ContentStore.CONTENT_REF_PREFIX + "%" });
+			if (cursor.moveToFirst()) {
+				do {
+					counts.put(cursor.getString(0), cursor.getInt(1));
+				} while (cursor.moveToNext());
+			}
+		} finally {
+			if( cursor != null ) {
+				cursor.close();
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Mark and sweep collector for content files that no inbox or outbox row
+	 * refers to, e.g. left behind when the process died between saving the
+	 * content and inserting its row. Deletes at most maxFiles per store,
+	 * then compacts the stores that need it.
+	 *
+	 * @return the number of bytes freed on disk
+	 */
+	public long collectOrphanedContent(int maxFiles) {
+		long reclaimed = mInboxContentStore.sweep(getContentRefs(TABLE_INBOX, KEY_INBOX_CONTENT), ORPHAN_MIN_AGE_MS, maxFiles);
+		reclaimed += mOutboxContentStore.sweep(getContentRefs(TABLE_OUTBOX, KEY_OUTBOX_CONTENT), ORPHAN_MIN_AGE_MS, maxFiles);
+		reclaimed += mInboxContentStore.compact();
+		reclaimed += mOutboxContentStore.compact();
+		return reclaimed;
+	}
+
+	/**
+	 * Outcome of one bounded expiry pass
+	 */
+	public static class PurgeResult {
+		public final int messages;
+		public final long bytesReclaimed;
+
+		PurgeResult(int messages, long bytesReclaimed) {
+			this.messages = messages;
+			this.bytesReclaimed = bytesReclaimed;
+		}
+	}
+
+	/**
+	 * Remove all expired inbox messages, in batches
+	 */
 	public void clearExpiredMessages() {
+		PurgeResult result;
+		do {
+			result = purgeExpiredMessages(PURGE_BATCH_SIZE);
+		} while (result.messages == PURGE_BATCH_SIZE);
+	}
 
-		// TODO: This should probably remove the content and filerefs and all that when it's called.
-		
-		long t = (new Date()).getTime();
-		String where = KEY_INBOX_EXPIRY + " < ?";	
-		synchronized (where) {				
-			dbWrite.delete(TABLE_INBOX, where, new String[] { String.valueOf(t) });
+	/**
+	 * Remove up to limit expired inbox messages, along with their delivery
+	 * rows, stored content and fileref attachments. Messages with no expiry
+	 * (0) are kept. Delivery rows left behind by older versions, which didn't
+	 * clear them, are removed too.
+	 *
+	 * @return the number of messages removed and the bytes freed on disk
+	 */
+	public PurgeResult purgeExpiredMessages(int limit) {
+		final String sql = "SELECT " + KEY_INBOX_ID + "," + KEY_INBOX_CONTENT + " FROM " + TABLE_INBOX + " WHERE " + KEY_INBOX_EXPIRY + " > 0 AND "
+				+ KEY_INBOX_EXPIRY + " < ? ORDER BY " + KEY_INBOX_EXPIRY + " LIMIT " + limit;
+		final String now = String.valueOf(new Date().getTime());
+
+		final List<String> ids = new ArrayList<String>();
+		final List<String> contents = new ArrayList<String>();
+
+		final String orphanedDelivery = "DELETE FROM " + TABLE_DELIVERY + " WHERE rowid IN (SELECT rowid FROM " + TABLE_DELIVERY + " WHERE NOT EXISTS (SELECT 1 FROM "
+				+ TABLE_INBOX + " WHERE " + KEY_INBOX_ID + " = " + TABLE_DELIVERY + "." + KEY_DELIVERY_INBOX_ID + ") LIMIT " + limit + ")";
+
+		// Rows go first: if we stop part way, a file without a row can be swept up later, a row without its file can't be read.
+		// The rows are read in the same write, and only the ones this write deleted are released, so a racing remove can't release them too.
+		writeUnchecked(new WriteQueue.Write<Void>() {
+			@Override
+			public Void apply(SQLiteDatabase db) {
+				ids.clear();
+				contents.clear();
+				List<String> expiredIds = new ArrayList<String>();
+				List<String> expiredContents = new ArrayList<String>();
+				Cursor cursor = db.rawQuery(sql, new String[] { now });
+				try {
+					while (cursor.moveToNext()) {
+						expiredIds.add(cursor.getString(0));
+						expiredContents.add(cursor.getString(1));
+					}
+				} finally {
+					cursor.close();
+				}
+				for (int i = 0; i < expiredIds.size(); i++) {
+					String id = expiredIds.get(i);
+					mDeleteInbox.bindString(1, id);
+					if (mDeleteInbox.executeUpdateDelete() > 0) {
+						ids.add(id);
+						contents.add(expiredContents.get(i));
+					}
+					mDeleteDelivery.bindString(1, id);
+					mDeleteDelivery.executeUpdateDelete();
+				}
+				db.execSQL(orphanedDelivery);
+				return null;
+			}
+		});
+
+		long reclaimed = 0;
+		for (int i = 0; i < ids.size(); i++) {
+			mRecentInboxIds.remove(ids.get(i));
+
+			String stored = contents.get(i);
+			if (stored == null || stored.length() == 0) {
+				continue;
+			}
+			try {
+				// Parsed as it is read, so a large expired body is never loaded whole
+				reclaimed += mFileRefHandler.deleteFiles(mInboxContentStore.openContent(stored));
+			} catch (NotificationsDBException e) {
+				CTLog.getInstance().log("shell", Priority.WARN_INT, "Expired message content missing: " + ids.get(i));
+			}
+			reclaimed += mInboxContentStore.deleteContent(stored);
+		}
+
+		if (!ids.isEmpty()) {
+			CTLog.getInstance().log("notify-audit", Priority.INFO_INT, "Expired " + ids.size() + " messages, reclaimed " + reclaimed + " bytes");
 		}
+		return new PurgeResult(ids.size(), reclaimed);
 	}
 
 	public void clearInbox() {
 		clearTable(TABLE_INBOX);
-		mInboxContentStore.clear();
-		mFileRefHandler.clearReceivedFiles();
+		// Files can't be rolled back, so within clear() they go once the whole clear has committed
+		mWriter.afterCommit(new Runnable() {
+			@Override
+			public void run() {
+				mRecentInboxIds.clear();
+				mInboxContentStore.clear();
+				mFileRefHandler.clearReceivedFiles();
+			}
+		});
 		CTLog.getInstance().log("notify-audit", Priority.INFO_INT, "Clearing inbox");
 	}
 
 	public void clearOutbox() {
 		clearTable(TABLE_OUTBOX);
-		mOutboxContentStore.clear();
-		mFileRefHandler.clearSendingFiles();		
+		mWriter.afterCommit(new Runnable() {
+			@Override
+			public void run() {
+				mOutboxContentStore.clear();
+				mFileRefHandler.clearSendingFiles();
+			}
+		});
 		CTLog.getInstance().log("notify-audit", Priority.INFO_INT, "Clearing outbox");
 	}
 	
@@ -652,20 +1371,27 @@ public class NotificationsDB extends SQLiteOpenHelper implements DBInterface {
 		clearTable(TABLE_CHANNELS);
 	}
 
-	public synchronized void clear() {			
-		dbWrite.beginTransaction();
-		try {
-			clearInbox();
-			clearOutbox();
-			clearDelivery();
-			clearChannels();
-			dbWrite.setTransactionSuccessful();
-		} finally {
-			dbWrite.endTransaction();
-		}	
+	public void clear() {			
+		writeUnchecked(new WriteQueue.Write<Void>() {
+			@Override
+			public Void apply(SQLiteDatabase db) {
+				// Nested writes join this transaction, and their files are cleared once it commits
+				clearInbox();
+				clearOutbox();
+				clearDelivery();
+				clearChannels();
+				return null;
+			}
+		});
 	}
 
-	private synchronized void clearTable(String table) {		
-		dbWrite.delete(table, null, null);		
+	private void clearTable(final String table) {		
+		writeUnchecked(new WriteQueue.Write<Void>() {
+			@Override
+			public Void apply(SQLiteDatabase db) {
+				db.delete(table, null, null);		
+				return null;
+			}
+		});
 	}
 }
\ No newline at end of file
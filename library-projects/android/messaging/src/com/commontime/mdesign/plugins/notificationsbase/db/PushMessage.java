@@ -9,6 +9,7 @@ import org.json.JSONObject;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.UUID;
 
 public class PushMessage implements Parcelable {
@@ -21,6 +22,11 @@ public class PushMessage implements Parcelable {
 	private long expiry;
 	private String notification;
 	private String provider;
+	// Higher is sent first; 0 unless the sender asks otherwise
+	private int priority;
+
+	// Parsed form of content, made on first use and dropped when content changes
+	private JSONObject contentTree;
 
 	public static PushMessage createNewPushMessage(String channel, String subchannel, String content) {
 		PushMessage pm = new PushMessage(UUID.randomUUID().toString(), channel, subchannel, content);
@@ -39,6 +45,7 @@ public class PushMessage implements Parcelable {
 		if( obj.has("content") ) {		
 			JSONObject jso = obj.getJSONObject("content");
 			pm.content = jso.toString();
+			pm.contentTree = jso;
 		} else {
 			pm.content = "{}";
 		}
@@ -57,6 +64,8 @@ public class PushMessage implements Parcelable {
 		} else {
 			pm.provider = "";
 		}
+
+		pm.priority = obj.optInt("priority", 0);
 					
 		return pm;
 	}
@@ -71,14 +80,19 @@ public class PushMessage implements Parcelable {
 	}
 
 	public PushMessage(Parcel source) {
-		this.id = source.readString();
-		this.channel = source.readString();
-		this.subchannel = source.readString();
-		this.content = source.readString();
-		this.date = source.readLong();
-		this.expiry = source.readLong();
-		this.notification = source.readString();
-		this.provider = source.readString();
+		this(PushMessageCodec.decode(source.createByteArray()));
+	}
+
+	private PushMessage(PushMessage other) {
+		this.id = other.id;
+		this.channel = other.channel;
+		this.subchannel = other.subchannel;
+		this.content = other.content;
+		this.date = other.date;
+		this.expiry = other.expiry;
+		this.notification = other.notification;
+		this.provider = other.provider;
+		this.priority = other.priority;
 	}
 
 	public PushMessage(JSONObject obj) throws JSONException {
@@ -90,6 +104,7 @@ public class PushMessage implements Parcelable {
 			if( obj.optJSONObject("content") != null ) {			
 				JSONObject jso = obj.getJSONObject("content");
 				this.content = jso.toString();
+				this.contentTree = jso;
 			} else {
 				this.content = obj.getString("content");
 			}
@@ -111,6 +126,8 @@ public class PushMessage implements Parcelable {
 		} else {
 			this.provider = "";
 		}
+
+		this.priority = obj.optInt("priority", 0);
 	}
 	
 	public JSONObject getJSONObject() throws JSONException {
@@ -118,25 +135,38 @@ public class PushMessage implements Parcelable {
 		jso.put("id", this.id);
 		jso.put("channel", this.channel);
 		jso.put("subchannel", this.subchannel);
-		jso.put("content", new JSONObject(this.content) );
+		jso.put("content", parseContent() );
 		jso.put("date", this.date);		
 		jso.put("expiry", this.expiry);		
 		jso.put("notification", this.notification);
 		jso.put("provider", this.provider);
+		if( this.priority != 0 ) {
+			jso.put("priority", this.priority);
+		}
 		
 		return jso;
 	}
+
+	public JSONObject getHeaderJSONObject() throws JSONException {
+		JSONObject jso = new JSONObject();
+		jso.put("id", this.id);
+		jso.put("channel", this.channel);
+		jso.put("subchannel", this.subchannel);
+		jso.put("date", this.date);
+		jso.put("expiry", this.expiry);
+		jso.put("notification", this.notification);
+		jso.put("provider", this.provider);
+		if( this.priority != 0 ) {
+			jso.put("priority", this.priority);
+		}
+
+		return jso;
+	}
 	
 	@Override
 	public void writeToParcel(Parcel parcel, int arg1) {
-		parcel.writeString(id);
-		parcel.writeString(channel);
-		parcel.writeString(subchannel);
-		parcel.writeString(content);
-		parcel.writeLong(date);
-		parcel.writeLong(expiry);
-		parcel.writeString(notification);
-		parcel.writeString(provider);
+		// UTF-8 in one array is about half the size of the UTF-16 Parcel strings for the usual ASCII content
+		parcel.writeByteArray(PushMessageCodec.encode(this));
 	}
 
 	public String getId() { return this.id; }
@@ -146,7 +176,20 @@ public class PushMessage implements Parcelable {
 	public String getSubchannel() { return this.subchannel; }
 	public void setSubchannel(String subchannel) { this.subchannel = subchannel; }
 	public String getContent() { return this.content; }
-	public void setContent(String content) { this.content = content; }
+	public void setContent(String content) {
+		if (content != this.content) {
+			this.content = content;
+			this.contentTree = null;
+		}
+	}
+	/**
+	 * Sets the content from an already parsed tree, which then becomes the
+	 * one {@link #getJSONContent()} returns.
+	 */
+	public void setContent(JSONObject content) {
+		this.content = content.toString();
+		this.contentTree = content;
+	}
 	public long getDate() { return this.date; }
 	public void setDate(long date) { this.date = date; }
 	public long getExpiry() { return this.expiry; }
@@ -155,6 +198,8 @@ public class PushMessage implements Parcelable {
 	public void setNotification(String notification) { this.notification = notification; }
 	public String getProvider() { return provider; }
 	public void setProvider(String provider) { this.provider = provider; }
+	public int getPriority() { return priority; }
+	public void setPriority(int priority) { this.priority = priority; }
 
 	@Override
 	public int describeContents() {
@@ -208,22 +253,58 @@ public class PushMessage implements Parcelable {
 		// return new PushMessageHandler(this).handle();
 	}
 	
+	/**
+	 * Single line JSON for logging. The content is already JSON text so it is
+	 * appended as it is rather than parsed and written out again.
+	 */
 	@Override
 	public String toString() {
 		try {
-			return this.getJSONObject().toString(3);
+			String header = this.getHeaderJSONObject().toString();
+			StringBuilder sb = new StringBuilder(header.length() + (content == null ? 4 : content.length()) + 12);
+			sb.append(header, 0, header.length() - 1);
+			sb.append(",\"content\":").append(content).append('}');
+			return sb.toString();
 		} catch (JSONException e) {		
 			e.printStackTrace();
 		}		
 		return "Error converting PushMessage: " + id + " to JSON";
 	}
 
+	/**
+	 * The parsed content. It is parsed once and the same object returned
+	 * until the content is set again, so callers must not modify it; use
+	 * {@link #copyJSONContent()} for a copy that can be changed.
+	 */
 	public JSONObject getJSONContent() {
 		try {
-			return new JSONObject(content);
+			return parseContent();
 		} catch (JSONException e) {
 			e.printStackTrace();
 			return null;
 		}
 	}
+
+	/**
+	 * A copy of the parsed content whose top level entries can be added,
+	 * replaced or removed without affecting this message. Nested objects
+	 * are still shared.
+	 */
+	public JSONObject copyJSONContent() throws JSONException {
+		JSONObject tree = parseContent();
+		JSONObject copy = new JSONObject();
+		Iterator<String> keys = tree.keys();
+		while (keys.hasNext()) {
+			String key = keys.next();
+			copy.put(key, tree.get(key));
+		}
+		return copy;
+	}
+
+	private JSONObject parseContent() throws JSONException {
+		if (contentTree == null) {
+			contentTree = new JSONObject(content);
+		}
+		return contentTree;
+	}
 }
@@ -0,0 +1,128 @@
+package com.commontime.mdesign.plugins.notificationsbase.db;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A compact binary form of a {@link PushMessage}, for handing messages
+ * between components without going through JSON.
+ * <p>
+ * The layout is magic, version, header length, the header and then the
+ * content length and raw UTF-8 content. The header holds the date, expiry,
+ * the string fields, each as a length (-1 for null) followed by UTF-8
+ * bytes, and then the priority. The header is length-prefixed so that
+ * fields can be added to it later without breaking older readers.
+ */
+public final class PushMessageCodec {
+
+	private static final int MAGIC = 0x4354504D;
+	private static final byte VERSION = 1;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final int PREAMBLE_SIZE = 4 + 1 + 4;
+
+	private PushMessageCodec() { }
+
+	public static byte[] encode(PushMessage message) {
+		byte[][] strings = {
+				toBytes(message.getId()),
+				toBytes(message.getChannel()),
+				toBytes(message.getSubchannel()),
+				toBytes(message.getNotification()),
+				toBytes(message.getProvider())
+		};
+		byte[] content = toBytes(message.getContent());
+
+		int headerLength = 8 + 8 + 4;
+		for (byte[] s : strings) {
+			headerLength += 4 + (s == null ? 0 : s.length);
+		}
+		int size = PREAMBLE_SIZE + headerLength + 4 + (content == null ? 0 : content.length);
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC);
+		buffer.put(VERSION);
+		buffer.putInt(headerLength);
+		buffer.putLong(message.getDate());
+		buffer.putLong(message.getExpiry());
+		for (byte[] s : strings) {
+			putBytes(buffer, s);
+		}
+		buffer.putInt(message.getPriority());
+		putBytes(buffer, content);
+		return buffer.array();
+	}
+
+	public static PushMessage decode(byte[] data) {
+		return decode(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Reads a message from the buffer's position, leaving the position just
+	 * after it.
+	 *
+	 * @throws IllegalArgumentException if the data isn't an encoded message
+	 * @throws java.nio.BufferUnderflowException if the data is truncated
+	 */
+	public static PushMessage decode(ByteBuffer buffer) {
+		PushMessage message = readHeader(buffer);
+		message.setContent(getString(buffer));
+		return message;
+	}
+
+	private static PushMessage readHeader(ByteBuffer buffer) {
+		if (buffer.getInt() != MAGIC) {
+			throw new IllegalArgumentException("Not an encoded PushMessage");
+		}
+		byte version = buffer.get();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported PushMessage encoding version " + version);
+		}
+		int headerLength = buffer.getInt();
+		int headerEnd = buffer.position() + headerLength;
+
+		long date = buffer.getLong();
+		long expiry = buffer.getLong();
+		PushMessage message = new PushMessage(getString(buffer), getString(buffer), getString(buffer), null);
+		message.setDate(date);
+		message.setExpiry(expiry);
+		message.setNotification(getString(buffer));
+		message.setProvider(getString(buffer));
+		// Absent from messages encoded before priorities were added
+		if (buffer.position() < headerEnd) {
+			message.setPriority(buffer.getInt());
+		}
+
+		// Fields can be appended to the header without breaking older readers
+		buffer.position(headerEnd);
+		return message;
+	}
+
+	private static byte[] toBytes(String s) {
+		return s == null ? null : s.getBytes(CHARSET);
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		if (bytes == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (buffer.hasArray()) {
+			String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, CHARSET);
+			buffer.position(buffer.position() + length);
+			return s;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+}
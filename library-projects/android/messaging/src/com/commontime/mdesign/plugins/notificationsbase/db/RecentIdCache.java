@@ -0,0 +1,67 @@
+package com.commontime.mdesign.plugins.notificationsbase.db;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of message ids known to be in the inbox. A hit is a definite
+ * duplicate; a miss only means the id has to be checked against the table.
+ */
+public class RecentIdCache {
+
+	private final int mCapacity;
+	private final LinkedHashMap<String, Boolean> mIds;
+
+	private long mHits;
+	private long mMisses;
+
+	public RecentIdCache(int capacity) {
+		mCapacity = capacity;
+		mIds = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > mCapacity;
+			}
+		};
+	}
+
+	public synchronized boolean contains(String id) {
+		if (mIds.get(id) != null) {
+			mHits++;
+			return true;
+		}
+		mMisses++;
+		return false;
+	}
+
+	public synchronized void add(String id) {
+		mIds.put(id, Boolean.TRUE);
+	}
+
+	public synchronized void addAll(Collection<String> ids) {
+		for (String id : ids) {
+			mIds.put(id, Boolean.TRUE);
+		}
+	}
+
+	public synchronized void remove(String id) {
+		mIds.remove(id);
+	}
+
+	public synchronized void clear() {
+		mIds.clear();
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	public synchronized long getHits() {
+		return mHits;
+	}
+
+	public synchronized long getMisses() {
+		return mMisses;
+	}
+}
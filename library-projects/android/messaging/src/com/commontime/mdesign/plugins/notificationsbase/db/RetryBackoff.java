@@ -0,0 +1,31 @@
+package com.commontime.mdesign.plugins.notificationsbase.db;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff for outbox retries. The delay doubles with each
+ * failed attempt up to a cap, and half of it is randomised so messages
+ * that failed together don't all come back at once.
+ */
+final class RetryBackoff {
+
+	private static final long BASE_DELAY_MS = 10 * 1000;
+	private static final long MAX_DELAY_MS = 30 * 60 * 1000;
+
+	private static final Random random = new Random();
+
+	private RetryBackoff() { }
+
+	/**
+	 * @param attempts failed attempts so far, at least 1
+	 */
+	static long delay(int attempts) {
+		long delay = MAX_DELAY_MS;
+		// Past this the doubling is well over the cap anyway
+		if (attempts < 20) {
+			delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.max(0, attempts - 1));
+		}
+		long half = delay / 2;
+		return half + (long) (random.nextDouble() * half);
+	}
+}
@@ -0,0 +1,403 @@
+package com.commontime.mdesign.plugins.notificationsbase.db;
+
+import com.commontime.mdesign.plugins.base.CTLog;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Priority;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends content to a few rolling segment files instead of creating a file
+ * per key, so a busy store costs appends rather than directory updates.
+ * <p>
+ * Each record is a header (magic, type, key length, time, data length), the
+ * key and the data. A put record holds the content; a delete record holds
+ * the id of the segment whose put it cancels. The offset/length index is
+ * kept in memory and rebuilt by scanning the segments on first use, which
+ * only reads headers and keys. Removing a key just appends a delete record,
+ * and {@link #compact()} later copies the live records out of mostly dead
+ * segments and deletes them.
+ */
+class SegmentLogBackend implements ContentBackend {
+
+	private interface RecordVisitor {
+		void visit(byte type, String key, long time, long dataOffset, int dataLength, long recordSize, RandomAccessFile file) throws IOException;
+	}
+
+	private static class Entry {
+		final long segment;
+		final long offset;
+		final int length;
+		final long recordSize;
+		long time;
+
+		Entry(long segment, long offset, int length, long recordSize, long time) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.recordSize = recordSize;
+			this.time = time;
+		}
+	}
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String KEY_CHARSET = "UTF-8";
+
+	private static final int RECORD_MAGIC = 0x43545347;
+	private static final byte TYPE_PUT = 1;
+	private static final byte TYPE_DELETE = 2;
+	private static final int HEADER_SIZE = 4 + 1 + 2 + 8 + 4;
+
+	private static final long SEGMENT_MAX_SIZE = 4 * 1024 * 1024;
+	// Compact sealed segments once less than this fraction of them is live
+	private static final float COMPACT_MAX_LIVE_RATIO = 0.5f;
+	// Bounds the time a compaction pass holds the store
+	private static final int COMPACT_MAX_SEGMENTS = 2;
+
+	private final File mDir;
+
+	private final Map<String, Entry> mIndex = new HashMap<String, Entry>();
+	// Segment id -> bytes of live put records in it
+	private final Map<Long, Long> mLiveBytes = new HashMap<Long, Long>();
+
+	private boolean mOpen;
+	private long mActiveId;
+	private RandomAccessFile mActive;
+
+	SegmentLogBackend(File dir) {
+		mDir = dir;
+	}
+
+	private File segmentFile(long id) {
+		return FileUtils.getFile(mDir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+	}
+
+	private void open() throws IOException {
+		if (mOpen) {
+			return;
+		}
+		FileUtils.forceMkdir(mDir);
+
+		List<Long> ids = new ArrayList<Long>();
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						CTLog.getInstance().log("shell", Priority.WARN_INT, "Ignoring unexpected segment file " + name);
+					}
+				}
+			}
+		}
+		Collections.sort(ids);
+
+		for (final Long id : ids) {
+			mLiveBytes.put(id, 0L);
+			RandomAccessFile file = new RandomAccessFile(segmentFile(id), "rw");
+			try {
+				long valid = readRecords(file, new RecordVisitor() {
+					@Override
+					public void visit(byte type, String key, long time, long dataOffset, int dataLength, long recordSize, RandomAccessFile file) throws IOException {
+						if (type == TYPE_PUT) {
+							index(key, new Entry(id, dataOffset, dataLength, recordSize, time));
+						} else if (type == TYPE_DELETE) {
+							file.seek(dataOffset);
+							Entry entry = mIndex.get(key);
+							if (entry != null && entry.segment == file.readLong()) {
+								unindex(key);
+							}
+						}
+					}
+				});
+				if (valid < file.length()) {
+					// Left by a write cut short, drop it so appends start from a clean record
+					CTLog.getInstance().log("shell", Priority.WARN_INT, "Truncating damaged content segment " + id + " at " + valid);
+					file.setLength(valid);
+				}
+			} finally {
+				file.close();
+			}
+		}
+
+		mActiveId = ids.isEmpty() ? 1 : ids.get(ids.size() - 1);
+		if (!mLiveBytes.containsKey(mActiveId)) {
+			mLiveBytes.put(mActiveId, 0L);
+		}
+		mActive = new RandomAccessFile(segmentFile(mActiveId), "rw");
+		mOpen = true;
+	}
+
+	/**
+	 * Walks the well formed records from the start of the file.
+	 *
+	 * @return the length of the file that holds complete records
+	 */
+	private long readRecords(RandomAccessFile file, RecordVisitor visitor) throws IOException {
+		long length = file.length();
+		long position = 0;
+		byte[] header = new byte[HEADER_SIZE];
+		while (position + HEADER_SIZE <= length) {
+			file.seek(position);
+			file.readFully(header);
+			ByteBuffer fields = ByteBuffer.wrap(header);
+			int magic = fields.getInt();
+			byte type = fields.get();
+			int keyLength = fields.getShort() & 0xffff;
+			long time = fields.getLong();
+			int dataLength = fields.getInt();
+
+			long dataOffset = position + HEADER_SIZE + keyLength;
+			long end = dataOffset + dataLength;
+			if (magic != RECORD_MAGIC || dataLength < 0 || end > length) {
+				break;
+			}
+			byte[] key = new byte[keyLength];
+			file.readFully(key);
+			visitor.visit(type, new String(key, KEY_CHARSET), time, dataOffset, dataLength, end - position, file);
+			position = end;
+		}
+		return position;
+	}
+
+	private long append(byte type, String key, long time, byte[] data) throws IOException {
+		if (mActive.length() >= SEGMENT_MAX_SIZE) {
+			sync();
+			mActive.close();
+			mActiveId++;
+			mLiveBytes.put(mActiveId, 0L);
+			mActive = new RandomAccessFile(segmentFile(mActiveId), "rw");
+		}
+		byte[] keyBytes = key.getBytes(KEY_CHARSET);
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + data.length);
+		record.putInt(RECORD_MAGIC);
+		record.put(type);
+		record.putShort((short) keyBytes.length);
+		record.putLong(time);
+		record.putInt(data.length);
+		record.put(keyBytes);
+		record.put(data);
+
+		long position = mActive.length();
+		mActive.seek(position);
+		mActive.write(record.array());
+		return position + HEADER_SIZE + keyBytes.length;
+	}
+
+	/**
+	 * Flush the active segment to disk. Deletes aren't synced on their own:
+	 * one lost in a crash only brings back content nothing refers to, which
+	 * the next sweep removes again.
+	 */
+	private void sync() throws IOException {
+		mActive.getFD().sync();
+	}
+
+	private void index(String key, Entry entry) {
+		Entry previous = mIndex.put(key, entry);
+		if (previous != null) {
+			addLiveBytes(previous.segment, -previous.recordSize);
+		}
+		addLiveBytes(entry.segment, entry.recordSize);
+	}
+
+	private Entry unindex(String key) {
+		Entry entry = mIndex.remove(key);
+		if (entry != null) {
+			addLiveBytes(entry.segment, -entry.recordSize);
+		}
+		return entry;
+	}
+
+	private void addLiveBytes(long segment, long bytes) {
+		Long live = mLiveBytes.get(segment);
+		mLiveBytes.put(segment, (live == null ? 0 : live) + bytes);
+	}
+
+	@Override
+	public synchronized boolean contains(String key) {
+		try {
+			open();
+		} catch (IOException e) {
+			CTLog.getInstance().log("shell", Priority.WARN_INT, "Unable to open content segments: " + e.getMessage());
+			return false;
+		}
+		return mIndex.containsKey(key);
+	}
+
+	@Override
+	public synchronized void put(String key, byte[] data) throws IOException {
+		open();
+		if (mIndex.containsKey(key)) {
+			// Already written by another save of the same content
+			return;
+		}
+		long time = System.currentTimeMillis();
+		long offset = append(TYPE_PUT, key, time, data);
+		// The caller stores a ref to this once put returns, so it must survive a power cut
+		sync();
+		long recordSize = HEADER_SIZE + key.getBytes(KEY_CHARSET).length + data.length;
+		index(key, new Entry(mActiveId, offset, data.length, recordSize, time));
+	}
+
+	@Override
+	public synchronized ByteBuffer get(String key) throws IOException {
+		open();
+		Entry entry = mIndex.get(key);
+		if (entry == null) {
+			throw new FileNotFoundException(key);
+		}
+		RandomAccessFile file = new RandomAccessFile(segmentFile(entry.segment), "r");
+		try {
+			if (entry.length >= FileContentBackend.MAP_MIN_SIZE) {
+				return file.getChannel().map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+			}
+			byte[] data = new byte[entry.length];
+			file.seek(entry.offset);
+			file.readFully(data);
+			return ByteBuffer.wrap(data);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Override
+	public synchronized void touch(String key) {
+		Entry entry = mIndex.get(key);
+		if (entry != null) {
+			entry.time = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * The space stays in use until the segment is compacted, so this never
+	 * frees anything itself.
+	 */
+	@Override
+	public synchronized long remove(String key) {
+		try {
+			open();
+			Entry entry = unindex(key);
+			if (entry != null) {
+				append(TYPE_DELETE, key, System.currentTimeMillis(), ByteBuffer.allocate(8).putLong(entry.segment).array());
+			}
+		} catch (IOException e) {
+			CTLog.getInstance().log("shell", Priority.WARN_INT, "Unable to remove content " + key + ": " + e.getMessage());
+		}
+		return 0;
+	}
+
+	@Override
+	public synchronized Map<String, Long> list() {
+		Map<String, Long> keys = new HashMap<String, Long>();
+		try {
+			open();
+		} catch (IOException e) {
+			CTLog.getInstance().log("shell", Priority.WARN_INT, "Unable to open content segments: " + e.getMessage());
+			return keys;
+		}
+		for (Map.Entry<String, Entry> entry : mIndex.entrySet()) {
+			keys.put(entry.getKey(), entry.getValue().time);
+		}
+		return keys;
+	}
+
+	@Override
+	public synchronized long compact() {
+		long reclaimed = 0;
+		try {
+			open();
+			List<Long> ids = new ArrayList<Long>(mLiveBytes.keySet());
+			Collections.sort(ids);
+			int compacted = 0;
+			for (Long id : ids) {
+				if (compacted >= COMPACT_MAX_SEGMENTS || id >= mActiveId) {
+					break;
+				}
+				File file = segmentFile(id);
+				long size = file.length();
+				if (mLiveBytes.get(id) < size * COMPACT_MAX_LIVE_RATIO) {
+					reclaimed += compactSegment(id, file);
+					compacted++;
+				}
+			}
+		} catch (IOException e) {
+			CTLog.getInstance().log("shell", Priority.WARN_INT, "Content segment compaction failed: " + e.getMessage());
+		}
+		return reclaimed;
+	}
+
+	/**
+	 * Copies the segment's live puts, and any deletes that still cancel a
+	 * put in another segment, to the active segment and deletes it.
+	 */
+	private long compactSegment(final long id, File segment) throws IOException {
+		final long[] copied = { 0 };
+		RandomAccessFile file = new RandomAccessFile(segment, "r");
+		try {
+			readRecords(file, new RecordVisitor() {
+				@Override
+				public void visit(byte type, String key, long time, long dataOffset, int dataLength, long recordSize, RandomAccessFile file) throws IOException {
+					if (type == TYPE_PUT) {
+						Entry entry = mIndex.get(key);
+						if (entry == null || entry.segment != id || entry.offset != dataOffset) {
+							return;
+						}
+						byte[] data = new byte[dataLength];
+						file.seek(dataOffset);
+						file.readFully(data);
+						long offset = append(TYPE_PUT, key, entry.time, data);
+						index(key, new Entry(mActiveId, offset, dataLength, recordSize, entry.time));
+						copied[0] += recordSize;
+					} else if (type == TYPE_DELETE) {
+						file.seek(dataOffset);
+						long target = file.readLong();
+						if (target != id && segmentFile(target).exists()) {
+							append(TYPE_DELETE, key, time, ByteBuffer.allocate(8).putLong(target).array());
+							copied[0] += recordSize;
+						}
+					}
+				}
+			});
+		} finally {
+			file.close();
+		}
+
+		// The copies have to be on disk before the only other copy goes
+		sync();
+		long size = segment.length();
+		if (!segment.delete()) {
+			throw new IOException("Unable to delete content segment " + id);
+		}
+		mLiveBytes.remove(id);
+		return size - copied[0];
+	}
+
+	@Override
+	public synchronized void clear() throws IOException {
+		if (mActive != null) {
+			mActive.close();
+			mActive = null;
+		}
+		mIndex.clear();
+		mLiveBytes.clear();
+		mOpen = false;
+		if (mDir.exists()) {
+			FileUtils.cleanDirectory(mDir);
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package com.commontime.mdesign.plugins.notificationsbase.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import com.commontime.mdesign.plugins.base.CTLog;
+
+import org.apache.log4j.Priority;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Single writer thread for NotificationsDB. Writes are queued and applied in
+ * groups, one transaction per group, so a burst of small writes from many
+ * threads ends up as a few commits rather than one per write.
+ */
+class WriteQueue {
+
+	interface Write<T> {
+		T apply(SQLiteDatabase db) throws NotificationsDBException;
+	}
+
+	private static final int QUEUE_CAPACITY = 1024;
+	private static final int MAX_GROUP_SIZE = 64;
+	private static final long GROUP_WINDOW_MS = 5;
+
+	private final SQLiteDatabase mDb;
+	private final BlockingQueue<Task<?>> mQueue = new ArrayBlockingQueue<Task<?>>(QUEUE_CAPACITY);
+	private final Thread mThread;
+	// The outermost write being applied, only touched on the writer thread
+	private Task<?> mApplying;
+	private volatile boolean mStopped;
+
+	WriteQueue(SQLiteDatabase db) {
+		mDb = db;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "NotificationsDB-writer");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Queue a write, blocking while the queue is full. The returned future
+	 * completes once the transaction containing the write has committed.
+	 * <p>
+	 * A write submitted from inside another write joins that write's
+	 * transaction instead. Its future completes as soon as it has been
+	 * applied, so the enclosing write can use the result, and it commits or
+	 * rolls back with the enclosing write. Anything that can't be undone,
+	 * such as deleting files, belongs in {@link #afterCommit}.
+	 */
+	<T> Future<T> submit(Write<T> write) throws InterruptedException {
+		Task<T> task = new Task<T>(write);
+		if (Thread.currentThread() == mThread) {
+			try {
+				task.apply(mDb);
+				task.complete();
+			} catch (Throwable t) {
+				task.fail(t);
+			}
+		} else if (mStopped) {
+			task.fail(new IllegalStateException("NotificationsDB writer has stopped"));
+		} else {
+			mQueue.put(task);
+			if (mStopped) {
+				// Stopped while this was being queued, and may have missed it
+				failQueued();
+			}
+		}
+		return task;
+	}
+
+	/**
+	 * Run the action once the write being applied has committed, or at once
+	 * if called outside a write. If the write rolls back the action is
+	 * dropped, and it is collected again should the write be retried.
+	 */
+	void afterCommit(Runnable action) {
+		if (Thread.currentThread() == mThread && mApplying != null) {
+			mApplying.mAfterCommit.add(action);
+		} else {
+			action.run();
+		}
+	}
+
+	private void drain() {
+		List<Task<?>> group = new ArrayList<Task<?>>();
+		try {
+			while (true) {
+				group.add(mQueue.take());
+
+				// Every caller waits for its group to commit, so a write on its own
+				// goes straight away; only a burst already under way waits for more
+				long deadline = SystemClock.uptimeMillis() + GROUP_WINDOW_MS;
+				while (group.size() < MAX_GROUP_SIZE) {
+					Task<?> task = mQueue.poll();
+					if (task == null) {
+						long remaining = deadline - SystemClock.uptimeMillis();
+						if (group.size() == 1 || remaining <= 0) {
+							break;
+						}
+						task = mQueue.poll(remaining, TimeUnit.MILLISECONDS);
+						if (task == null) {
+							break;
+						}
+					}
+					group.add(task);
+				}
+
+				try {
+					applyGroup(group);
+				} catch (Throwable t) {
+					// Don't leave anyone waiting on a group that went wrong outside a write
+					CTLog.getInstance().log("shell", Priority.ERROR_INT, "NotificationsDB write group failed: " + t);
+					for (Task<?> task : group) {
+						task.fail(t);
+					}
+				}
+				group.clear();
+			}
+		} catch (InterruptedException e) {
+			CTLog.getInstance().log("shell", Priority.WARN_INT, "NotificationsDB writer interrupted");
+		} finally {
+			mStopped = true;
+			for (Task<?> task : group) {
+				task.fail(new IllegalStateException("NotificationsDB writer has stopped"));
+			}
+			failQueued();
+		}
+	}
+
+	private void failQueued() {
+		Task<?> task;
+		while ((task = mQueue.poll()) != null) {
+			task.fail(new IllegalStateException("NotificationsDB writer has stopped"));
+		}
+	}
+
+	private void apply(Task<?> task) throws NotificationsDBException {
+		mApplying = task;
+		try {
+			task.apply(mDb);
+		} finally {
+			mApplying = null;
+		}
+	}
+
+	private void applyGroup(List<Task<?>> group) {
+		if (group.size() > 1) {
+			boolean committed = false;
+			try {
+				mDb.beginTransaction();
+				try {
+					for (Task<?> task : group) {
+						apply(task);
+					}
+					mDb.setTransactionSuccessful();
+				} finally {
+					mDb.endTransaction();
+				}
+				committed = true;
+			} catch (Throwable t) {
+				// The whole group rolled back, so retry each write on its own to find the one that failed
+				CTLog.getInstance().log("shell", Priority.WARN_INT, "Grouped write of " + group.size() + " failed, retrying individually: " + t.getMessage());
+			}
+			if (committed) {
+				for (Task<?> task : group) {
+					task.complete();
+				}
+				return;
+			}
+		}
+
+		for (Task<?> task : group) {
+			try {
+				mDb.beginTransaction();
+				try {
+					apply(task);
+					mDb.setTransactionSuccessful();
+				} finally {
+					mDb.endTransaction();
+				}
+			} catch (Throwable t) {
+				task.fail(t);
+				continue;
+			}
+			task.complete();
+		}
+	}
+
+	/**
+	 * A write and the future its caller waits on, completed by the writer
+	 * thread once the write's transaction has committed or failed
+	 */
+	private static class Task<T> implements Future<T> {
+
+		private final Write<T> mWrite;
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		// Run once the write commits, collected afresh each time it is applied
+		private final List<Runnable> mAfterCommit = new ArrayList<Runnable>();
+		private T mResult;
+		private Throwable mFailure;
+
+		Task(Write<T> write) {
+			mWrite = write;
+		}
+
+		void apply(SQLiteDatabase db) throws NotificationsDBException {
+			mAfterCommit.clear();
+			mResult = mWrite.apply(db);
+		}
+
+		/**
+		 * Run the after commit actions, then release the caller
+		 */
+		void complete() {
+			for (Runnable action : mAfterCommit) {
+				try {
+					action.run();
+				} catch (Throwable t) {
+					CTLog.getInstance().log("shell", Priority.ERROR_INT, "NotificationsDB after commit action failed: " + t);
+				}
+			}
+			mAfterCommit.clear();
+			mDone.countDown();
+		}
+
+		void fail(Throwable t) {
+			if (isDone()) {
+				return;
+			}
+			mAfterCommit.clear();
+			mFailure = t;
+			mDone.countDown();
+		}
+
+		/**
+		 * Writes can't be taken back once queued
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return mDone.getCount() == 0;
+		}
+
+		@Override
+		public T get() throws InterruptedException, ExecutionException {
+			mDone.await();
+			return getResult();
+		}
+
+		@Override
+		public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!mDone.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return getResult();
+		}
+
+		private T getResult() throws ExecutionException {
+			if (mFailure != null) {
+				throw new ExecutionException(mFailure);
+			}
+			return mResult;
+		}
+	}
+}
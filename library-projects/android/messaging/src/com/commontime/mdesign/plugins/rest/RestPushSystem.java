@@ -26,8 +26,6 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.UUID;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import okhttp3.Headers;
@@ -124,9 +122,7 @@ public class RestPushSystem extends PushSystem {
     @Override
     public Future<SendResult> sendMessage(final PushMessage msg) {
 
-        final ExecutorService service = Executors.newSingleThreadScheduledExecutor();
-
-        return service.submit(new Callable<SendResult>() {
+        return pushEngine.getTransportExecutor().submit(new Callable<SendResult>() {
 
             @Override
             public SendResult call() throws Exception {
@@ -241,7 +237,7 @@ public class RestPushSystem extends PushSystem {
                     c.add(Calendar.YEAR, 100);
                     responseMessage.setExpiry(c.getTimeInMillis());
 
-                    responseMessage.setContent(responseContent.toString());
+                    responseMessage.setContent(responseContent);
                     responseMessage.setProvider(REST_PROVIDER);
 
                     observer.messageReceived(responseMessage);
@@ -0,0 +1,87 @@
+package com.commontime.mdesign.plugins.notificationsbase;
+
+import com.commontime.mdesign.plugins.notificationsbase.db.PushMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+public class SendLanesTest {
+
+	private LinkedList<Runnable> mPending;
+	private List<String> mSent;
+	private SendLanes mLanes;
+	private PushSystemInterface mSystem;
+
+	@Before
+	public void setUp() {
+		mPending = new LinkedList<Runnable>();
+		mSent = new ArrayList<String>();
+		// Workers only run when the test says, so everything is queued first
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				mPending.add(command);
+			}
+		};
+		mLanes = new SendLanes(executor, new SendLanes.Sender() {
+			@Override
+			public long send(PushSystemInterface system, PushMessage msg) {
+				mSent.add(msg.getId());
+				return SendLanes.CARRY_ON;
+			}
+
+			@Override
+			public void retryAt(long at) {
+			}
+		});
+		mSystem = (PushSystemInterface) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PushSystemInterface.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return method.getName().equals("getName") ? "test" : null;
+					}
+				});
+	}
+
+	@Test
+	public void laterHigherPriorityMessageWaitsForItsChannel() {
+		submit("first", "orders", "", 0);
+		submit("second", "orders", "", 10);
+		runWorkers();
+
+		assertEquals(Arrays.asList("first", "second"), mSent);
+	}
+
+	@Test
+	public void priorityChoosesBetweenChannels() {
+		submit("low", "orders", "", 0);
+		submit("lowNext", "orders", "", 10);
+		submit("high", "alerts", "", 5);
+		runWorkers();
+
+		assertEquals(Arrays.asList("high", "low", "lowNext"), mSent);
+	}
+
+	private void submit(String id, String channel, String subchannel, int priority) {
+		PushMessage msg = new PushMessage(id, channel, subchannel, "{}");
+		msg.setPriority(priority);
+		mLanes.submit(mSystem, msg, false);
+	}
+
+	private void runWorkers() {
+		while (!mPending.isEmpty()) {
+			mPending.removeFirst().run();
+		}
+	}
+}
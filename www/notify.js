@@ -235,6 +235,207 @@ module.exports = {
       }
     },
   
+		getMessagesPage : function (channel, subchannel, afterDate, afterId, limit, callback) {
+      var s;
+      function success(messages) {
+        logmessage("Notify.getMessagesPage success: " + messages);
+        if (callback) {
+          callback(undefined, messages);
+        }
+      }
+      function error(s) {
+        logerror("Notify.getMessagesPage: " + s);
+        if (callback) {
+          callback(s)
+        }
+      }
+      logmessage("Notify.getMessagesPage");
+      try {
+        if (exec) {
+          channel = channel || '';
+          subchannel = subchannel || '';
+          afterDate = afterDate || 0;
+          afterId = afterId || '';
+          limit = limit || 0;
+          exec(success, error, 'Notify', 'getMessagesPage', [channel, subchannel, afterDate, afterId, limit]);
+        } else {
+          error('Restricted mode');
+        }
+      } catch (e) {
+        s = "Notify.getMessagesPage error: " + e.message;
+        logerror(s);
+        if (callback) {
+          callback(s);
+        }
+      }
+    },
+  
+		getUnreadMessagesPage : function (receiver, channel, subchannel, afterDate, afterId, limit, callback) {
+      var s;
+      function success(messages) {
+        logmessage("Notify.getUnreadMessagesPage success: " + messages);
+        if (callback) {
+          callback(undefined, messages);
+        }
+      }
+      function error(s) {
+        logerror("Notify.getUnreadMessagesPage: " + s);
+        if (callback) {
+          callback(s)
+        }
+      }
+      logmessage("Notify.getUnreadMessagesPage");
+      try {
+        if (exec) {
+          channel = channel || '';
+          subchannel = subchannel || '';
+          receiver = receiver || '';
+          afterDate = afterDate || 0;
+          afterId = afterId || '';
+          limit = limit || 0;
+          exec(success, error, 'Notify', 'getUnreadMessagesPage', [receiver, channel, subchannel, afterDate, afterId, limit]);
+        } else {
+          error('Restricted mode');
+        }
+      } catch (e) {
+        s = "Notify.getUnreadMessagesPage error: " + e.message;
+        logerror(s);
+        if (callback) {
+          callback(s);
+        }
+      }
+    },
+  
+		streamMessages : function (channel, subchannel, pageSize, callback) {
+      var s;
+      // Called once per page, the last page is flagged as done
+      function success(messages) {
+        logmessage("Notify.streamMessages page: " + messages.length);
+        if (callback) {
+          callback(undefined, messages, messages.length < pageSize);
+        }
+      }
+      function error(s) {
+        logerror("Notify.streamMessages: " + s);
+        if (callback) {
+          callback(s)
+        }
+      }
+      logmessage("Notify.streamMessages");
+      try {
+        if (exec) {
+          channel = channel || '';
+          subchannel = subchannel || '';
+          pageSize = pageSize || 50;
+          exec(success, error, 'Notify', 'streamMessages', [channel, subchannel, pageSize]);
+        } else {
+          error('Restricted mode');
+        }
+      } catch (e) {
+        s = "Notify.streamMessages error: " + e.message;
+        logerror(s);
+        if (callback) {
+          callback(s);
+        }
+      }
+    },
+  
+		getMessageHeaders : function (channel, subchannel, callback) {
+      var s;
+      function success(messages) {
+        logmessage("Notify.getMessageHeaders success: " + messages);
+        if (callback) {
+          callback(undefined, messages);
+        }
+      }
+      function error(s) {
+        logerror("Notify.getMessageHeaders: " + s);
+        if (callback) {
+          callback(s)
+        }
+      }
+      logmessage("Notify.getMessageHeaders");
+      try {
+        if (exec) {
+          channel = channel || '';
+          subchannel = subchannel || '';
+          exec(success, error, 'Notify', 'getMessageHeaders', [channel, subchannel]);
+        } else {
+          error('Restricted mode');
+        }
+      } catch (e) {
+        s = "Notify.getMessageHeaders error: " + e.message;
+        logerror(s);
+        if (callback) {
+          callback(s);
+        }
+      }
+    },
+  
+		getUnreadMessageHeaders : function (receiver, channel, subchannel, callback) {
+      var s;
+      function success(messages) {
+        logmessage("Notify.getUnreadMessageHeaders success: " + messages);
+        if (callback) {
+          callback(undefined, messages);
+        }
+      }
+      function error(s) {
+        logerror("Notify.getUnreadMessageHeaders: " + s);
+        if (callback) {
+          callback(s)
+        }
+      }
+      logmessage("Notify.getUnreadMessageHeaders");
+      try {
+        if (exec) {
+          channel = channel || '';
+          subchannel = subchannel || '';
+          receiver = receiver || '';
+          exec(success, error, 'Notify', 'getUnreadMessageHeaders', [receiver, channel, subchannel]);
+        } else {
+          error('Restricted mode');
+        }
+      } catch (e) {
+        s = "Notify.getUnreadMessageHeaders error: " + e.message;
+        logerror(s);
+        if (callback) {
+          callback(s);
+        }
+      }
+    },
+  
+		getMessage : function (id, callback) {
+      var s;
+      function success(message) {
+        logmessage("Notify.getMessage success: " + message);
+        if (callback) {
+          callback(undefined, message);
+        }
+      }
+      function error(s) {
+        logerror("Notify.getMessage: " + s);
+        if (callback) {
+          callback(s)
+        }
+      }
+      logmessage("Notify.getMessage");
+      try {
+        if (exec) {
+          id = id || '';
+          exec(success, error, 'Notify', 'getMessage', [id]);
+        } else {
+          error('Restricted mode');
+        }
+      } catch (e) {
+        s = "Notify.getMessage error: " + e.message;
+        logerror(s);
+        if (callback) {
+          callback(s);
+        }
+      }
+    },
+  
 		deleteMessage : function (id, callback) {
       var s;
       function success(messageid) {
@@ -421,6 +622,40 @@ module.exports = {
       }
     },
   
+		receiveInboxChangeBatches : function (receiver, flushInterval, maxEvents, callback) {
+      var s;
+      // Called with an array of {action, id} deltas
+      function success(changes) {
+        logmessage("Notify.receiveInboxChangeBatches success: " + changes.length);
+        if (callback) {
+          callback(undefined, changes);
+        }
+      }
+      function error(s) {
+        logerror("Notify.receiveInboxChangeBatches: " + s);
+        if (callback) {
+          callback(s)
+        }
+      }
+      logmessage("Notify.receiveInboxChangeBatches");
+      try {
+        if (exec) {
+          receiver = receiver || '';
+          flushInterval = flushInterval || 250;
+          maxEvents = maxEvents || 100;
+          exec(success, error, 'Notify', 'receiveInboxChangeBatches', [receiver, flushInterval, maxEvents]);
+        } else {
+          error('Restricted mode');
+        }
+      } catch (e) {
+        s = "Notify.receiveInboxChangeBatches error: " + e.message;
+        logerror(s);
+        if (callback) {
+          callback(s);
+        }
+      }
+    },
+  
 		cancelInboxChanges : function (receiver, callback) {
       var s;
       function success() {